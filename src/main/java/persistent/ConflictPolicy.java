@@ -0,0 +1,44 @@
+package persistent;
+
+/**
+ * decides the value of the key (or of the index) changed differently in both versions during the
+ * three-way merge. The absent values are passed as null
+ *
+ * @param <K> type of the keys (Integer indices for the arrays)
+ * @param <V> type of the values
+ */
+@FunctionalInterface
+public interface ConflictPolicy<K, V> {
+
+    /**
+     * @param key the key changed in both versions
+     * @param base value in the common ancestor or null
+     * @param left value in the left version or null
+     * @param right value in the right version or null
+     * @return merged value, null removes the key from the map
+     */
+    V resolve(K key, V base, V left, V right);
+
+    /**
+     * @return policy keeping the change of the left version
+     */
+    static <K, V> ConflictPolicy<K, V> preferLeft() {
+        return (key, base, left, right) -> left;
+    }
+
+    /**
+     * @return policy keeping the change of the right version
+     */
+    static <K, V> ConflictPolicy<K, V> preferRight() {
+        return (key, base, left, right) -> right;
+    }
+
+    /**
+     * @return policy throwing IllegalStateException on the first conflict
+     */
+    static <K, V> ConflictPolicy<K, V> fail() {
+        return (key, base, left, right) -> {
+            throw new IllegalStateException("Conflicting changes of " + key);
+        };
+    }
+}
@@ -0,0 +1,55 @@
+package persistent;
+
+/**
+ * hash function of the keys for the hash tries. The tries take the hash bits from the lowest
+ * ones, so the hashCode differing only in the high bits (or sharing the low ones) makes the paths
+ * long. The mixing strategies spread every bit of the hashCode over the whole hash; the keys with
+ * equal hashCode still collide whatever the strategy is
+ */
+@FunctionalInterface
+public interface HashStrategy {
+
+    /**
+     * the hashCode of the key as is
+     */
+    HashStrategy IDENTITY = Object::hashCode;
+
+    /**
+     * the hashCode of the key mixed by the murmur3 finalizer
+     */
+    HashStrategy MURMUR = key -> mix(key.hashCode());
+
+    /**
+     * @param key the key
+     * @return 32-bit hash of the key
+     */
+    int hash(Object key);
+
+    /**
+     * The seed chosen at random makes the slots of the keys unpredictable, so the keys picked to
+     * share the low hash bits do not make the paths long. The maps can be merged only if they use
+     * the same instance of the strategy
+     *
+     * @param seed the seed
+     * @return the hashCode mixed with the seed by the murmur3 finalizer
+     */
+    static HashStrategy seeded(int seed) {
+        int mixedSeed = mix(seed);
+        return key -> mix(key.hashCode() ^ mixedSeed);
+    }
+
+    /**
+     * murmur3 finalizer: every input bit affects every output bit
+     *
+     * @param hash the hash
+     * @return the mixed hash
+     */
+    static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,497 @@
+package persistent;
+
+/**
+ * persistent AVL tree of graph indices annotated with subtree sizes (order-statistic tree). Each
+ * vertex stores a run of consecutive graph indices [start, start + length), so sequentially added
+ * elements occupy a single vertex. An empty tree is represented by null.
+ *
+ * <p>The tree is used either as a sequence (positional methods) or as a sorted set of graph
+ * indices (methods working with the values). In a sequence runs may be bound to another graph
+ * (frozen version of the structure the indices were taken from). All unbound runs of a tree are
+ * bound in O(1) time, the binding is pushed down to the children lazily.
+ */
+class IndexTree {
+
+    private final IndexTree left; //stored without the binding of this vertex
+    private final IndexTree right; //stored without the binding of this vertex
+    private final PersistentArray<?> graph; //graph of the run, null if it is not bound yet
+    private final PersistentArray<?> bound; //graph of all unbound runs in the whole subtree
+    final int start; //first graph index of the run
+    final int length; //amount of graph indices in the run
+    final int size; //amount of graph indices in the whole subtree
+    final int boundSize; //amount of graph indices bound to another graph in the whole subtree
+    final int runs; //amount of vertices (runs) in the whole subtree
+    final int height;
+
+    /**
+     * constructor for the vertex with unbound run, sizes and heights are computed from the
+     * children
+     *
+     * @param left left subtree (preceding runs)
+     * @param start first graph index of the run
+     * @param length amount of graph indices in the run
+     * @param right right subtree (following runs)
+     */
+    IndexTree(IndexTree left, int start, int length, IndexTree right) {
+        this(left, start, length, null, right, null);
+    }
+
+    private IndexTree(IndexTree left, int start, int length, PersistentArray<?> graph,
+        IndexTree right, PersistentArray<?> bound) {
+        this.left = left;
+        this.right = right;
+        this.graph = graph;
+        this.bound = bound;
+        this.start = start;
+        this.length = length;
+        this.size = size(left) + length + size(right);
+        this.boundSize = bound != null ? this.size
+            : boundSize(left) + (graph != null ? length : 0) + boundSize(right);
+        this.runs = runs(left) + 1 + runs(right);
+        this.height = Math.max(height(left), height(right)) + 1;
+    }
+
+    /**
+     * @return left subtree with the binding of this vertex applied
+     */
+    private IndexTree left() {
+        return bind(left, bound);
+    }
+
+    /**
+     * @return right subtree with the binding of this vertex applied
+     */
+    private IndexTree right() {
+        return bind(right, bound);
+    }
+
+    /**
+     * @return graph of the run or null if the run is not bound
+     */
+    private PersistentArray<?> graph() {
+        return graph != null ? graph : bound;
+    }
+
+    /**
+     * result of splitting the tree by position
+     */
+    static class Split {
+
+        final IndexTree left;
+        final IndexTree right;
+
+        Split(IndexTree left, IndexTree right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * run of consecutive graph indices found by position
+     */
+    static class Run {
+
+        final int position; //position of the first graph index of the run
+        final int start; //first graph index of the run
+        final int length;
+        final PersistentArray<?> graph; //null if the run is not bound to another graph
+
+        Run(int position, int start, int length, PersistentArray<?> graph) {
+            this.position = position;
+            this.start = start;
+            this.length = length;
+            this.graph = graph;
+        }
+    }
+
+    /**
+     * @param tree the tree (may be null)
+     * @return amount of graph indices in the tree [time O(1)]
+     */
+    static int size(IndexTree tree) {
+        return tree == null ? 0 : tree.size;
+    }
+
+    /**
+     * @param tree the tree (may be null)
+     * @return amount of graph indices bound to another graph [time O(1)]
+     */
+    static int boundSize(IndexTree tree) {
+        return tree == null ? 0 : tree.boundSize;
+    }
+
+    /**
+     * @param tree the tree (may be null)
+     * @return amount of runs of consecutive graph indices in the tree [time O(1)]
+     */
+    static int runs(IndexTree tree) {
+        return tree == null ? 0 : tree.runs;
+    }
+
+    /**
+     * @param tree the tree (may be null)
+     * @return height of the tree [time O(1)]
+     */
+    static int height(IndexTree tree) {
+        return tree == null ? 0 : tree.height;
+    }
+
+    /**
+     * create the tree consisting of one unbound run
+     *
+     * @param start first graph index of the run
+     * @param length amount of graph indices in the run
+     * @return new tree or null if the run is empty
+     */
+    static IndexTree run(int start, int length) {
+        if (length <= 0) {
+            return null;
+        }
+        return new IndexTree(null, start, length, null);
+    }
+
+    /**
+     * bind all unbound runs of the tree to the given graph [time O(1)]
+     *
+     * @param tree the tree (may be null)
+     * @param graph the graph (null leaves the tree unchanged)
+     * @return new tree
+     */
+    static IndexTree bind(IndexTree tree, PersistentArray<?> graph) {
+        if (tree == null || graph == null || tree.boundSize == tree.size) {
+            return tree;
+        }
+        return new IndexTree(tree.left, tree.start, tree.length, tree.graph, tree.right, graph);
+    }
+
+    /**
+     * find graph index stored at the given position [time O(log(N))]
+     *
+     * @param tree the tree
+     * @param position position (in-order rank) of the needed graph index
+     * @return graph index
+     */
+    static int select(IndexTree tree, int position) {
+        Run run = runAt(tree, position);
+        return run.start + position - run.position;
+    }
+
+    /**
+     * find the run containing the graph index stored at the given position [time O(log(N))]
+     *
+     * @param tree the tree
+     * @param position position (in-order rank) of the needed graph index
+     * @return the run
+     */
+    static Run runAt(IndexTree tree, int position) {
+        if (position < 0 || position >= size(tree)) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size(tree));
+        }
+        IndexTree current = tree;
+        PersistentArray<?> bound = null; //the nearest binding on the path
+        int skipped = 0;
+        while (true) {
+            if (current.bound != null) {
+                bound = current.bound;
+            }
+            int leftSize = size(current.left);
+            if (position < skipped + leftSize) {
+                current = current.left;
+            } else if (position < skipped + leftSize + current.length) {
+                return new Run(skipped + leftSize, current.start, current.length,
+                    current.graph != null ? current.graph : bound);
+            } else {
+                skipped += leftSize + current.length;
+                current = current.right;
+            }
+        }
+    }
+
+    private static IndexTree rotateLeft(IndexTree tree) {
+        IndexTree r = tree.right();
+        return new IndexTree(
+            new IndexTree(tree.left(), tree.start, tree.length, tree.graph(), r.left(), null),
+            r.start, r.length, r.graph(), r.right(), null);
+    }
+
+    private static IndexTree rotateRight(IndexTree tree) {
+        IndexTree l = tree.left();
+        return new IndexTree(l.left(), l.start, l.length, l.graph(),
+            new IndexTree(l.right(), tree.start, tree.length, tree.graph(), tree.right(), null),
+            null);
+    }
+
+    /**
+     * join two trees with the run between them when the left one is taller
+     */
+    private static IndexTree joinRight(IndexTree left, int start, int length,
+        PersistentArray<?> graph, IndexTree right) {
+        if (height(left.right) <= height(right) + 1) {
+            IndexTree middle = new IndexTree(left.right(), start, length, graph, right, null);
+            if (middle.height <= height(left.left) + 1) {
+                return new IndexTree(left.left(), left.start, left.length, left.graph(), middle,
+                    null);
+            }
+            return rotateLeft(new IndexTree(left.left(), left.start, left.length, left.graph(),
+                rotateRight(middle), null));
+        }
+        IndexTree middle = joinRight(left.right(), start, length, graph, right);
+        IndexTree out = new IndexTree(left.left(), left.start, left.length, left.graph(), middle,
+            null);
+        if (middle.height <= height(left.left) + 1) {
+            return out;
+        }
+        return rotateLeft(out);
+    }
+
+    /**
+     * join two trees with the run between them when the right one is taller
+     */
+    private static IndexTree joinLeft(IndexTree left, int start, int length,
+        PersistentArray<?> graph, IndexTree right) {
+        if (height(right.left) <= height(left) + 1) {
+            IndexTree middle = new IndexTree(left, start, length, graph, right.left(), null);
+            if (middle.height <= height(right.right) + 1) {
+                return new IndexTree(middle, right.start, right.length, right.graph(),
+                    right.right(), null);
+            }
+            return rotateRight(new IndexTree(rotateLeft(middle), right.start, right.length,
+                right.graph(), right.right(), null));
+        }
+        IndexTree middle = joinLeft(left, start, length, graph, right.left());
+        IndexTree out = new IndexTree(middle, right.start, right.length, right.graph(),
+            right.right(), null);
+        if (middle.height <= height(right.right) + 1) {
+            return out;
+        }
+        return rotateRight(out);
+    }
+
+    /**
+     * join two trees placing the given run between them [time O(|height(left) -
+     * height(right)|)]
+     *
+     * @param left tree with preceding runs
+     * @param start first graph index of the middle run
+     * @param length amount of graph indices in the middle run
+     * @param graph graph of the middle run or null
+     * @param right tree with following runs
+     * @return new balanced tree
+     */
+    private static IndexTree join(IndexTree left, int start, int length,
+        PersistentArray<?> graph, IndexTree right) {
+        if (height(left) > height(right) + 1) {
+            return joinRight(left, start, length, graph, right);
+        }
+        if (height(right) > height(left) + 1) {
+            return joinLeft(left, start, length, graph, right);
+        }
+        return new IndexTree(left, start, length, graph, right, null);
+    }
+
+    /**
+     * split the tree into the first position elements and the rest [time O(log(N))]
+     *
+     * @param tree the tree
+     * @param position amount of graph indices to be left in the first part
+     * @return both parts
+     */
+    static Split split(IndexTree tree, int position) {
+        if (tree == null) {
+            return new Split(null, null);
+        }
+        int leftSize = size(tree.left);
+        if (position <= leftSize) {
+            Split split = split(tree.left(), position);
+            return new Split(split.left,
+                join(split.right, tree.start, tree.length, tree.graph(), tree.right()));
+        }
+        if (position >= leftSize + tree.length) {
+            Split split = split(tree.right(), position - leftSize - tree.length);
+            return new Split(join(tree.left(), tree.start, tree.length, tree.graph(), split.left),
+                split.right);
+        }
+        int offset = position - leftSize;
+        return new Split(join(tree.left(), tree.start, offset, tree.graph(), null),
+            join(null, tree.start + offset, tree.length - offset, tree.graph(), tree.right()));
+    }
+
+    private static IndexTree first(IndexTree tree) {
+        while (tree.left != null) {
+            tree = tree.left();
+        }
+        return tree;
+    }
+
+    private static IndexTree last(IndexTree tree) {
+        while (tree.right != null) {
+            tree = tree.right();
+        }
+        return tree;
+    }
+
+    /**
+     * concatenate two trees, adjacent runs of the same graph on the border are merged [time
+     * O(log(N))]
+     *
+     * @param left tree with preceding graph indices
+     * @param right tree with following graph indices
+     * @return new tree
+     */
+    static IndexTree concat(IndexTree left, IndexTree right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        IndexTree last = last(left);
+        int start = last.start;
+        int length = last.length;
+        PersistentArray<?> graph = last.graph();
+        IndexTree rest = split(left, left.size - length).left;
+
+        IndexTree first = first(right);
+        if (start + length == first.start && graph == first.graph()) {
+            length += first.length;
+            right = split(right, first.length).right;
+        }
+        return join(rest, start, length, graph, right);
+    }
+
+    /**
+     * insert unbound graph index at the given position [time O(log(N))]
+     *
+     * @param tree the tree
+     * @param position position of the new graph index
+     * @param treeIndex graph index to be inserted
+     * @return new tree
+     */
+    static IndexTree insert(IndexTree tree, int position, int treeIndex) {
+        return insertRun(tree, position, treeIndex, 1);
+    }
+
+    /**
+     * insert the unbound run of consecutive graph indices at the given position [time
+     * O(log(N))]
+     *
+     * @param tree the tree
+     * @param position position of the first graph index of the run
+     * @param start first graph index of the run
+     * @param length amount of graph indices in the run
+     * @return new tree
+     */
+    static IndexTree insertRun(IndexTree tree, int position, int start, int length) {
+        Split split = split(tree, position);
+        return concat(concat(split.left, run(start, length)), split.right);
+    }
+
+    /**
+     * remove graph index at the given position [time O(log(N))]
+     *
+     * @param tree the tree
+     * @param position position of the graph index to be removed
+     * @return new tree
+     */
+    static IndexTree remove(IndexTree tree, int position) {
+        Split split = split(tree, position);
+        return concat(split.left, split(split.right, 1).right);
+    }
+
+    /**
+     * write graph indices of all unbound runs of the tree in the in-order [time O(N)]
+     *
+     * @param tree the tree
+     * @return array of graph indices
+     */
+    static int[] toArray(IndexTree tree) {
+        int[] out = new int[size(tree) - boundSize(tree)];
+        toArrayHelper(tree, out, 0);
+        return out;
+    }
+
+    private static int toArrayHelper(IndexTree tree, int[] out, int from) {
+        if (tree == null || tree.boundSize == tree.size) {
+            return from;
+        }
+        from = toArrayHelper(tree.left, out, from);
+        if (tree.graph == null) {
+            for (int i = 0; i < tree.length; i++) {
+                out[from++] = tree.start + i;
+            }
+        }
+        return toArrayHelper(tree.right, out, from);
+    }
+
+    /**
+     * amount of graph indices less than the given one, the tree must be sorted [time O(log(N))]
+     *
+     * @param tree sorted tree
+     * @param treeIndex graph index
+     * @return position where the graph index is (or would be) stored
+     */
+    static int rank(IndexTree tree, int treeIndex) {
+        int out = 0;
+        IndexTree current = tree;
+        while (current != null) {
+            if (treeIndex < current.start) {
+                current = current.left;
+            } else if (treeIndex < current.start + current.length) {
+                return out + size(current.left) + treeIndex - current.start;
+            } else {
+                out += size(current.left) + current.length;
+                current = current.right;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * check whether the sorted tree contains given graph index [time O(log(N))]
+     *
+     * @param tree sorted tree
+     * @param treeIndex graph index
+     * @return true if the graph index is stored in the tree
+     */
+    static boolean contains(IndexTree tree, int treeIndex) {
+        IndexTree current = tree;
+        while (current != null) {
+            if (treeIndex < current.start) {
+                current = current.left;
+            } else if (treeIndex < current.start + current.length) {
+                return true;
+            } else {
+                current = current.right;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * add graph index to the sorted tree [time O(log(N))]
+     *
+     * @param tree sorted tree
+     * @param treeIndex graph index to be added
+     * @return new tree
+     */
+    static IndexTree addSorted(IndexTree tree, int treeIndex) {
+        if (contains(tree, treeIndex)) {
+            return tree;
+        }
+        return insert(tree, rank(tree, treeIndex), treeIndex);
+    }
+
+    /**
+     * remove graph index from the sorted tree [time O(log(N))]
+     *
+     * @param tree sorted tree
+     * @param treeIndex graph index to be removed
+     * @return new tree
+     */
+    static IndexTree removeSorted(IndexTree tree, int treeIndex) {
+        if (!contains(tree, treeIndex)) {
+            return tree;
+        }
+        return remove(tree, rank(tree, treeIndex));
+    }
+}
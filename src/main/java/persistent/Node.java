@@ -1,12 +1,11 @@
 package persistent;
 
 import java.util.ArrayList;
+import java.util.List;
 
 class Node<T> {
     ArrayList<Node<T>> children;
     T data;
-    int previousIndex; //-1 or non-negative graph index corresponding to the next element in the linked list
-    int nextIndex; //-1 or non-negative graph index corresponding to the next element in the linked list
 
     /**
      * constructor for internal (non-leaf) nodes
@@ -17,8 +16,6 @@ class Node<T> {
         for (int i = 0; i < branchingFactor; i++) {
             this.children.add(null);
         }
-        this.previousIndex = -1;
-        this.nextIndex = -1;
     }
 
     /**
@@ -29,8 +26,6 @@ class Node<T> {
     Node(int branchingFactor, T data) {
         this.data = data;
         this.children = null;
-        this.previousIndex = -1;
-        this.nextIndex = -1;
     }
 
     /**
@@ -55,4 +50,29 @@ class Node<T> {
     void set(int i, Node<T> e) {
         this.children.set(i, e);
     }
+
+    /**
+     * build the subgraph bottom-up from the already created leaves [time O(N)]
+     *
+     * @param leaves leaves in the graph index order
+     * @param from graph index of the first leaf in the subgraph
+     * @param base branchingFactor ^ (depth of the subgraph - 1)
+     * @param branchingFactor number of children at each node
+     * @return root of the subgraph
+     */
+    static <T> Node<T> build(List<Node<T>> leaves, int from, int base, int branchingFactor) {
+        Node<T> node = new Node<>(branchingFactor);
+        for (int i = 0; i < branchingFactor; i++) {
+            int childFrom = from + i * base;
+            if (childFrom >= leaves.size()) {
+                break;
+            }
+            if (base == 1) {
+                node.set(i, leaves.get(childFrom));
+            } else {
+                node.set(i, build(leaves, childFrom, base / branchingFactor, branchingFactor));
+            }
+        }
+        return node;
+    }
 }
@@ -1,82 +1,239 @@
 package persistent;
 
-import java.util.ArrayList;
-
+/**
+ * node of the hash array mapped trie. The slots of the node are indexed by the chunk of the key
+ * hash and only the occupied ones are stored: the entries (keys and values in pairs) first, then
+ * the subnodes in reversed order. Two bitmaps tell which slots hold entries and which hold
+ * subnodes, so the position of a slot is the number of lower bits set (popcount).
+ *
+ * <p>The full hash of every entry is stored next to it, so the keys are compared only when the
+ * hashes match and the entries pushed down to a new subnode are not rehashed. The nodes below
+ * the last hash chunk are collision nodes: both bitmaps are empty and all entries have the same
+ * hash.
+ *
+ * <p>The nodes created by a transient batch are owned by it and are changed in place until the
+ * batch is finished, all other nodes are never changed.
+ */
 class NodeMap<K, V> {
 
-    ArrayList<NodeMap<K, V>> children;
-    ArrayList<V> values;
-    ArrayList<K> keys;
-    int previousIndex; //-1 or non-negative graph index corresponding to the next element in the linked list
-    int nextIndex; //-1 or non-negative graph index corresponding to the next element in the linked list
+    int dataMap; //bitmap of the slots holding entries
+    int nodeMap; //bitmap of the slots holding subnodes
+    int[] hashes; //full hashes of the entries
+    Object[] content;
+    final Object owner; //token of the transient batch which may change the node, or null
 
     /**
-     * constructor for internal (non-leaf) nodes
+     * constructor for the node
+     *
+     * @param owner token of the transient batch or null
+     * @param dataMap bitmap of the slots holding entries
+     * @param nodeMap bitmap of the slots holding subnodes
+     * @param hashes full hashes of the entries
+     * @param content keys and values in pairs followed by the subnodes in reversed order
      */
-    NodeMap(int branchingFactor) {
-        this.children = new ArrayList<>();
-        for (int i = 0; i < branchingFactor; i++) {
-            this.children.add(null);
-        }
-        this.previousIndex = -1;
-        this.nextIndex = -1;
+    NodeMap(Object owner, int dataMap, int nodeMap, int[] hashes, Object[] content) {
+        this.owner = owner;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.hashes = hashes;
+        this.content = content;
+    }
+
+    /**
+     * constructor for the empty node
+     */
+    NodeMap() {
+        this(null, 0, 0, new int[0], new Object[0]);
+    }
+
+    /**
+     * @return amount of entries stored in the node itself
+     */
+    int entries() {
+        return hashes.length;
+    }
+
+    /**
+     * @param bit bit of the slot holding an entry
+     * @return index of the entry
+     */
+    int dataIndex(int bit) {
+        return Integer.bitCount(dataMap & (bit - 1));
+    }
+
+    /**
+     * @param bit bit of the slot holding a subnode
+     * @return index of the subnode
+     */
+    int nodeIndex(int bit) {
+        return Integer.bitCount(nodeMap & (bit - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    K key(int i) {
+        return (K) content[2 * i];
+    }
+
+    @SuppressWarnings("unchecked")
+    V value(int i) {
+        return (V) content[2 * i + 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    NodeMap<K, V> node(int i) {
+        return (NodeMap<K, V>) content[content.length - 1 - i];
+    }
+
+    /**
+     * @param i index of the entry
+     * @param hash full hash of the key
+     * @return true if the ith entry has the given key
+     */
+    boolean hasKey(int i, Object key, int hash) {
+        return hashes[i] == hash && key.equals(content[2 * i]);
     }
 
     /**
-     * constructor for leaf nodes
+     * find the entry in the collision node, all its entries have the same hash
      *
-     * @param value value to be stored in the leaf
+     * @param key the key
+     * @return index of the entry or -1
      */
-    NodeMap(NodeMap<K, V> oldNode, K key, V value) {
-        this.keys = new ArrayList<K>();
-        this.values = new ArrayList<V>();
-        if (oldNode != null) {
-            if (oldNode.keys.size() == 0) {
-                this.keys.add(key);
-                this.values.add(value);
-            } else {
-                boolean isIn = oldNode.keys.contains(key);
-                this.keys.addAll(oldNode.keys);
-                this.values.addAll(oldNode.values);
-                if (!isIn) {
-                    this.keys.add(key);
-                    this.values.add(value);
-                } else if (value == null) {
-                    int position = oldNode.keys.indexOf(key);
-                    this.keys.remove(position);
-                    this.values.remove(position);
-                }
+    int collisionIndex(Object key) {
+        for (int i = 0; i < entries(); i++) {
+            if (key.equals(key(i))) {
+                return i;
             }
-        } else {
-            this.keys.add(key);
-            this.values.add(value);
         }
-        this.children = null;
-        this.previousIndex = -1;
-        this.nextIndex = -1;
+        return -1;
     }
 
     /**
-     * get the ith child in the current node
+     * @param owner token of the transient batch or null
+     * @return true if the node may be changed in place by the batch
+     */
+    private boolean isOwnedBy(Object owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    /**
+     * change the node in place if it is owned by the batch, copy it otherwise
      *
-     * @param i index of the needed child
-     * @return the ith child
+     * @return the node with the new fields
      */
-    NodeMap<K, V> get(int i) {
-        if (this.children.size() <= i) {
-            return null;
+    private NodeMap<K, V> update(Object owner, int dataMap, int nodeMap, int[] hashes,
+        Object[] content) {
+        if (isOwnedBy(owner)) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.hashes = hashes;
+            this.content = content;
+            return this;
         }
-        return this.children.get(i);
+        return new NodeMap<>(owner, dataMap, nodeMap, hashes, content);
+    }
+
+    /**
+     * @param owner token of the transient batch or null
+     * @return the node with new value of the ith entry
+     */
+    NodeMap<K, V> copyAndSetValue(Object owner, int i, V value) {
+        Object[] newContent = isOwnedBy(owner) ? content : content.clone();
+        newContent[2 * i + 1] = value;
+        return update(owner, dataMap, nodeMap, hashes, newContent);
     }
 
+    /**
+     * @param owner token of the transient batch or null
+     * @param bit bit of the new slot (0 for the collision node)
+     * @param i index of the new entry
+     * @return the node with the new entry
+     */
+    NodeMap<K, V> copyAndInsertEntry(Object owner, int bit, int i, int hash, K key, V value) {
+        Object[] newContent = new Object[content.length + 2];
+        System.arraycopy(content, 0, newContent, 0, 2 * i);
+        newContent[2 * i] = key;
+        newContent[2 * i + 1] = value;
+        System.arraycopy(content, 2 * i, newContent, 2 * i + 2, content.length - 2 * i);
+        return update(owner, dataMap | bit, nodeMap, insert(hashes, i, hash), newContent);
+    }
 
     /**
-     * set the ith child
-     *
-     * @param i index of the needed child
-     * @param e new value of the child
+     * @param owner token of the transient batch or null
+     * @param bit bit of the removed slot (0 for the collision node)
+     * @param i index of the removed entry
+     * @return the node without the entry
+     */
+    NodeMap<K, V> copyAndRemoveEntry(Object owner, int bit, int i) {
+        Object[] newContent = new Object[content.length - 2];
+        System.arraycopy(content, 0, newContent, 0, 2 * i);
+        System.arraycopy(content, 2 * i + 2, newContent, 2 * i, content.length - 2 * i - 2);
+        return update(owner, dataMap ^ bit, nodeMap, remove(hashes, i), newContent);
+    }
+
+    /**
+     * @param owner token of the transient batch or null
+     * @param bit bit of the slot holding a subnode
+     * @return the node with the new subnode in the slot
+     */
+    NodeMap<K, V> copyAndSetNode(Object owner, int bit, NodeMap<K, V> node) {
+        Object[] newContent = isOwnedBy(owner) ? content : content.clone();
+        newContent[content.length - 1 - nodeIndex(bit)] = node;
+        return update(owner, dataMap, nodeMap, hashes, newContent);
+    }
+
+    /**
+     * @param owner token of the transient batch or null
+     * @param bit bit of the slot holding an entry
+     * @param node subnode replacing the entry
+     * @return the node with the subnode instead of the entry
+     */
+    NodeMap<K, V> copyAndMigrateToNode(Object owner, int bit, NodeMap<K, V> node) {
+        int dataPosition = 2 * dataIndex(bit);
+        int nodePosition = content.length - 2 - nodeIndex(bit); //in the new content
+        Object[] newContent = new Object[content.length - 1];
+        System.arraycopy(content, 0, newContent, 0, dataPosition);
+        System.arraycopy(content, dataPosition + 2, newContent, dataPosition,
+            nodePosition - dataPosition);
+        newContent[nodePosition] = node;
+        System.arraycopy(content, nodePosition + 2, newContent, nodePosition + 1,
+            content.length - nodePosition - 2);
+        return update(owner, dataMap ^ bit, nodeMap | bit, remove(hashes, dataPosition / 2),
+            newContent);
+    }
+
+    /**
+     * @param owner token of the transient batch or null
+     * @param bit bit of the slot holding a subnode
+     * @return the node with the entry instead of the subnode
      */
-    void set(int i, NodeMap<K, V> e) {
-        this.children.set(i, e);
+    NodeMap<K, V> copyAndMigrateToEntry(Object owner, int bit, int hash, K key, V value) {
+        int dataPosition = 2 * dataIndex(bit);
+        int nodePosition = content.length - 1 - nodeIndex(bit); //in the old content
+        Object[] newContent = new Object[content.length + 1];
+        System.arraycopy(content, 0, newContent, 0, dataPosition);
+        newContent[dataPosition] = key;
+        newContent[dataPosition + 1] = value;
+        System.arraycopy(content, dataPosition, newContent, dataPosition + 2,
+            nodePosition - dataPosition);
+        System.arraycopy(content, nodePosition + 1, newContent, nodePosition + 2,
+            content.length - nodePosition - 1);
+        return update(owner, dataMap | bit, nodeMap ^ bit, insert(hashes, dataPosition / 2, hash),
+            newContent);
+    }
+
+    private static int[] insert(int[] array, int i, int element) {
+        int[] out = new int[array.length + 1];
+        System.arraycopy(array, 0, out, 0, i);
+        out[i] = element;
+        System.arraycopy(array, i, out, i + 1, array.length - i);
+        return out;
+    }
+
+    private static int[] remove(int[] array, int i) {
+        int[] out = new int[array.length - 1];
+        System.arraycopy(array, 0, out, 0, i);
+        System.arraycopy(array, i + 1, out, i, array.length - i - 1);
+        return out;
     }
 }
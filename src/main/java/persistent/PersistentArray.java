@@ -3,7 +3,7 @@ package persistent;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.TreeSet;
+import java.util.Objects;
 
 public class PersistentArray<T> {
 
@@ -121,6 +121,16 @@ public class PersistentArray<T> {
      * @return the element at the specified index in the given list
      */
     public T get(int index) {
+        return getLeafParent(index).get(index % branchingFactor).data;
+    }
+
+    /**
+     * get the lowest internal node on the path to the ith element
+     *
+     * @param index index of the element
+     * @return Node whose children are the leaves containing needed element
+     */
+    Node<T> getLeafParent(int index) {
         Node<T> currentNode = this.root;
 
         for (int b = base; b > 1; b = b / branchingFactor) {
@@ -130,8 +140,7 @@ public class PersistentArray<T> {
             currentNode = currentNode.get(nextBranch);
             index = index % b;
         }
-        return currentNode.get(index).data;
-
+        return currentNode;
     }
 
     /**
@@ -291,17 +300,178 @@ public class PersistentArray<T> {
             this.size - 1);
     }
 
+    /**
+     * three-way merge of two versions derived from the common one. The subgraphs the same in two
+     * of the three arrays are taken without visiting them, so only the paths changed by both
+     * versions are walked. The policy is called only for the indices changed differently by both
+     * versions. If both versions change the size differently, the longer one wins and the
+     * policy also decides the elements missing in the shorter version
+     *
+     * @param base common ancestor of both versions
+     * @param left first version derived from the base
+     * @param right second version derived from the base
+     * @param policy decides the element at the conflicting index
+     * @return array with the changes of both versions
+     */
+    public static <T> PersistentArray<T> merge3(PersistentArray<T> base, PersistentArray<T> left,
+        PersistentArray<T> right, ConflictPolicy<Integer, T> policy) {
+        if (base.branchingFactor != left.branchingFactor
+            || right.branchingFactor != left.branchingFactor) {
+            throw new IllegalArgumentException("Branching factors are different");
+        }
+        int newSize;
+        int conflictFrom;
+        if (left.size == right.size || right.size == base.size) {
+            newSize = left.size;
+            conflictFrom = newSize;
+        } else if (left.size == base.size) {
+            newSize = right.size;
+            conflictFrom = newSize;
+        } else {
+            newSize = Math.max(left.size, right.size);
+            conflictFrom = Math.min(left.size, right.size);
+        }
+        int depth = Math.max(base.depth, Math.max(left.depth, right.depth));
+
+        Merge3<T> merge = new Merge3<>(left.branchingFactor, newSize, conflictFrom, policy);
+        int newBase = Math.max(base.base, Math.max(left.base, right.base));
+        Node<T> newRoot = merge.merge(base.rootAtDepth(depth), left.rootAtDepth(depth),
+            right.rootAtDepth(depth), newBase, 0);
+
+        //cut the levels not needed for the new size
+        while (depth > 1 && newBase >= newSize) {
+            newRoot = newRoot == null ? null : newRoot.get(0);
+            depth--;
+            newBase /= left.branchingFactor;
+        }
+        if (newRoot == null) {
+            newRoot = new Node<>(left.branchingFactor);
+        }
+        if (newRoot == left.root && newSize == left.size) {
+            return left;
+        }
+        if (newRoot == right.root && newSize == right.size) {
+            return right;
+        }
+        return new PersistentArray<>(newRoot, left.branchingFactor, depth, newBase, newSize);
+    }
+
+    /**
+     * @param depth depth not less than the depth of the array
+     * @return root of the graph extended with the nodes having the only first child
+     */
+    private Node<T> rootAtDepth(int depth) {
+        Node<T> out = this.root;
+        for (int d = this.depth; d < depth; d++) {
+            Node<T> parent = new Node<>(branchingFactor);
+            parent.set(0, out);
+            out = parent;
+        }
+        return out;
+    }
+
+    /**
+     * the state of the three-way merge of the arrays
+     */
+    private static class Merge3<T> {
+
+        private final int branchingFactor;
+        private final int size; //size of the merged array
+        private final int conflictFrom; //the indices from here till the size are changed by both
+        private final ConflictPolicy<Integer, T> policy;
+
+        Merge3(int branchingFactor, int size, int conflictFrom, ConflictPolicy<Integer, T> policy) {
+            this.branchingFactor = branchingFactor;
+            this.size = size;
+            this.conflictFrom = conflictFrom;
+            this.policy = policy;
+        }
+
+        private static <T> Node<T> child(Node<T> node, int i) {
+            return node == null ? null : node.get(i);
+        }
+
+        /**
+         * recursive function merging two versions of the subgraph of the base
+         *
+         * @param b root node for the subgraph of the base or null
+         * @param l root node for the subgraph of the left version or null
+         * @param r root node for the subgraph of the right version or null
+         * @param base branchingFactor ^ (depth of the subgraph - 1)
+         * @param start index of the first element in the subgraph
+         * @return new root for the subgraph or null if it is empty
+         */
+        Node<T> merge(Node<T> b, Node<T> l, Node<T> r, int base, int start) {
+            boolean conflicting = conflictFrom < size && start < size
+                && start + base * branchingFactor > conflictFrom;
+            if (!conflicting) {
+                if (l == r || r == b) {
+                    return l;
+                }
+                if (l == b) {
+                    return r;
+                }
+            }
+
+            Node<T> out = new Node<>(branchingFactor);
+            boolean empty = true;
+            boolean sameAsLeft = l != null;
+            boolean sameAsRight = r != null;
+            for (int i = 0; i < branchingFactor; i++) {
+                Node<T> leftChild = child(l, i);
+                Node<T> rightChild = child(r, i);
+                Node<T> newChild = base == 1
+                    ? mergeLeaf(child(b, i), leftChild, rightChild, start + i)
+                    : merge(child(b, i), leftChild, rightChild, base / branchingFactor,
+                        start + i * base);
+                out.set(i, newChild);
+                empty &= newChild == null;
+                sameAsLeft &= newChild == leftChild;
+                sameAsRight &= newChild == rightChild;
+            }
+            if (empty) {
+                return null;
+            }
+            return sameAsLeft ? l : sameAsRight ? r : out;
+        }
+
+        private static boolean sameLeaf(Node<?> x, Node<?> y) {
+            return x == y || x != null && y != null && Objects.equals(x.data, y.data);
+        }
+
+        private static <T> T data(Node<T> leaf) {
+            return leaf == null ? null : leaf.data;
+        }
+
+        /**
+         * @return merged leaf at the index or null if there is no element
+         */
+        private Node<T> mergeLeaf(Node<T> b, Node<T> l, Node<T> r, int index) {
+            if (index >= size) {
+                return null;
+            }
+            if (sameLeaf(l, r) || sameLeaf(r, b)) {
+                if (l != null) {
+                    return l;
+                }
+            } else if (sameLeaf(l, b)) {
+                if (r != null) {
+                    return r;
+                }
+            }
+            //changed by both versions or removed by one of them in the conflict range
+            return new Node<>(branchingFactor, policy.resolve(index, data(b), data(l), data(r)));
+        }
+    }
+
     /**
      * convert the structure to PersistentLinkedList sharing the same data
      * @return PersistentLinkedList
      */
     public PersistentLinkedList<T> toPersistentLinkedList() {
-        PersistentLinkedList<T> out = new PersistentLinkedList<>(this.root, this.branchingFactor, this.depth, this.base,
-            this.size, new TreeSet<>(), 0, this.size);
-        for (int i = -1; i < size; i++) {
-            out.setLinks(i, i + 1);
-        }
-        return out;
+        //the nodes are shared, the linked list order is the single run of all graph indices
+        return new PersistentLinkedList<>(this.root, this.branchingFactor, this.depth, this.base,
+            this.size, null, IndexTree.run(0, this.size));
     }
 
     /**
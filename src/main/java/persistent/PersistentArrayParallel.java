@@ -4,13 +4,14 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 /**
- * thread-safe, has one version of the array for all sharing threads
+ * thread-safe, has one version of the array for all sharing threads. The writers CAS the new
+ * versions in, the reads are plain volatile loads of the current version
  *
  * @param <T> type of data to be stored in the array
  */
 public class PersistentArrayParallel<T> {
 
-    private AtomicReference<PersistentArray<T>> state = new AtomicReference<>();
+    private final AtomicReference<PersistentArray<T>> state = new AtomicReference<>();
 
     public PersistentArrayParallel(int powerOfBranchingFactor) {
         PersistentArray<T> init = new PersistentArray<T>(powerOfBranchingFactor);
@@ -24,15 +25,7 @@ public class PersistentArrayParallel<T> {
      * @return the element at the specified index in the given list
      */
     public T get(int index) {
-        PersistentArray<T> curVersion;
-        T value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.get(index);
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().get(index);
     }
 
     /**
@@ -136,48 +129,33 @@ public class PersistentArrayParallel<T> {
         } while (!success);
     }
 
+    /**
+     * The reads of the snapshot need no synchronization and see one consistent version
+     *
+     * @return immutable current version of the array
+     */
+    public PersistentArray<T> snapshot() {
+        return state.get();
+    }
+
     /**
      * convert the structure to PersistentLinkedList sharing the same data
      *
      * @return PersistentLinkedList
      */
     public PersistentLinkedList<T> toPersistentLinkedList() {
-        PersistentArray<T> curVersion;
-        PersistentLinkedList<T> value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.toPersistentLinkedList();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().toPersistentLinkedList();
     }
 
     /**
      * @return persistent array size
      */
     public int size() {
-        PersistentArray<T> curVersion;
-        int value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.size();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().size();
     }
 
     @Override
     public String toString() {
-        PersistentArray<T> curVersion;
-        String value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.toString();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().toString();
     }
 }
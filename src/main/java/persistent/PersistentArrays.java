@@ -0,0 +1,172 @@
+package persistent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * sorting and searching of the persistent arrays. The elements are read leaf block by leaf block,
+ * sorted in an ordinary array and the sorted version is built bottom-up, so no path is copied
+ * per element. All sorts are stable: equal elements keep their order.
+ */
+public class PersistentArrays {
+
+    private PersistentArrays() {
+    }
+
+    /**
+     * create new version of the array with the elements sorted in their natural order [time O(N *
+     * log(N))]
+     *
+     * @param array the array
+     * @param <T> type of the elements
+     * @return sorted version of the array
+     */
+    public static <T extends Comparable<? super T>> PersistentArray<T> sort(
+        PersistentArray<T> array) {
+        return sort(array, Comparator.naturalOrder());
+    }
+
+    /**
+     * create new version of the array with the elements sorted by the comparator [time O(N *
+     * log(N))]
+     *
+     * @param array the array
+     * @param comparator comparator defining the order
+     * @param <T> type of the elements
+     * @return sorted version of the array
+     */
+    public static <T> PersistentArray<T> sort(PersistentArray<T> array,
+        Comparator<? super T> comparator) {
+        T[] elements = toArray(array);
+        Arrays.sort(elements, comparator);
+        return build(elements, array.branchingFactor);
+    }
+
+    /**
+     * create new version of the array with the elements sorted in their natural order using
+     * fork/join merge sort [time O(N * log(N)), parallel]
+     *
+     * @param array the array
+     * @param <T> type of the elements
+     * @return sorted version of the array
+     */
+    public static <T extends Comparable<? super T>> PersistentArray<T> parallelSort(
+        PersistentArray<T> array) {
+        return parallelSort(array, Comparator.naturalOrder());
+    }
+
+    /**
+     * create new version of the array with the elements sorted by the comparator using fork/join
+     * merge sort [time O(N * log(N)), parallel]
+     *
+     * @param array the array
+     * @param comparator comparator defining the order
+     * @param <T> type of the elements
+     * @return sorted version of the array
+     */
+    public static <T> PersistentArray<T> parallelSort(PersistentArray<T> array,
+        Comparator<? super T> comparator) {
+        T[] elements = toArray(array);
+        Arrays.parallelSort(elements, comparator);
+        return build(elements, array.branchingFactor);
+    }
+
+    /**
+     * search the key in the array sorted in the natural order [time O(log(N) * log(BF, N))]
+     *
+     * @param array sorted array
+     * @param key the key
+     * @param <T> type of the elements
+     * @return index of the key if it is found; otherwise, (-(insertion point) - 1)
+     */
+    public static <T extends Comparable<? super T>> int binarySearch(PersistentArray<T> array,
+        T key) {
+        return binarySearch(array, key, Comparator.naturalOrder());
+    }
+
+    /**
+     * search the key in the array sorted by the comparator [time O(log(N) * log(BF, N))]
+     *
+     * @param array sorted array
+     * @param key the key
+     * @param comparator comparator the array is sorted by
+     * @param <T> type of the elements
+     * @return index of the key if it is found; otherwise, (-(insertion point) - 1)
+     */
+    public static <T> int binarySearch(PersistentArray<T> array, T key,
+        Comparator<? super T> comparator) {
+        int low = 0;
+        int high = array.size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = comparator.compare(array.get(middle), key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * read the elements of the array visiting every internal node once [time O(N)]
+     *
+     * @param array the array
+     * @return the elements in the index order
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] toArray(PersistentArray<T> array) {
+        T[] elements = (T[]) new Object[array.size];
+        if (array.size > 0) {
+            toArrayHelper(array.root, 0, array.base, array.branchingFactor, elements);
+        }
+        return elements;
+    }
+
+    /**
+     * recursive function copying the elements of the current subgraph
+     *
+     * @param node root node for the current subgraph
+     * @param from index of the first element in the subgraph
+     * @param b base of the subgraph
+     * @param branchingFactor number of children at each node
+     * @param elements destination
+     */
+    private static <T> void toArrayHelper(Node<T> node, int from, int b, int branchingFactor,
+        T[] elements) {
+        for (int i = 0; i < branchingFactor && from + i * b < elements.length; i++) {
+            if (b == 1) {
+                elements[from + i] = node.get(i).data;
+            } else {
+                toArrayHelper(node.get(i), from + i * b, b / branchingFactor, branchingFactor,
+                    elements);
+            }
+        }
+    }
+
+    /**
+     * build the persistent array bottom-up [time O(N)]
+     *
+     * @param elements elements in the index order
+     * @param branchingFactor number of children at each node
+     * @return PersistentArray
+     */
+    static <T> PersistentArray<T> build(T[] elements, int branchingFactor) {
+        ArrayList<Node<T>> leaves = new ArrayList<>(elements.length);
+        for (T element : elements) {
+            leaves.add(new Node<>(branchingFactor, element));
+        }
+        int depth = 1;
+        int base = 1;
+        while (base * branchingFactor < elements.length) {
+            base *= branchingFactor;
+            depth++;
+        }
+        return new PersistentArray<>(Node.build(leaves, 0, base, branchingFactor),
+            branchingFactor, depth, base, elements.length);
+    }
+}
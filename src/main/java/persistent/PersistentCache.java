@@ -0,0 +1,303 @@
+package persistent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * thread-safe LRU cache with the weight limit and the time to live. Every version of the cache is
+ * a persistent linked hash map in the recency order (the least recently used entry first), the
+ * writers CAS the new versions in, the readers of the snapshot never wait. The expired entries
+ * are dropped when they are read or reach the head of the order
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class PersistentCache<K, V> {
+
+    private final AtomicReference<State<K, V>> state;
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final long timeToLive; //nanoseconds, 0 if the entries never expire
+    private final LongSupplier clock; //nanoseconds
+
+    //striped counters, so the readers do not contend on them
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * value with its weight and expiration time
+     */
+    private static class Entry<V> {
+
+        final V value;
+        final long weight;
+        final long expiresAt; //nanoseconds
+
+        Entry(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * version of the cache
+     */
+    private static class State<K, V> {
+
+        final PersistentLinkedHashMap<K, Entry<V>> entries; //the least recently used first
+        final long weight; //total weight of the entries
+
+        State(PersistentLinkedHashMap<K, Entry<V>> entries, long weight) {
+            this.entries = entries;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * package-private constructor for the cache with the given clock
+     *
+     * @param clock current time in nanoseconds
+     */
+    PersistentCache(long maxWeight, ToLongFunction<? super V> weigher, long timeToLive,
+        TimeUnit unit, LongSupplier clock) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Max weight must be positive");
+        }
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live must not be negative");
+        }
+        this.state = new AtomicReference<>(new State<>(new PersistentLinkedHashMap<>(), 0));
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.timeToLive = unit.toNanos(timeToLive);
+        this.clock = clock;
+    }
+
+    /**
+     * constructor for the cache limiting the total weight of the values
+     *
+     * @param maxWeight maximum total weight of the values
+     * @param weigher weight of the value
+     * @param timeToLive time to live of the entry after its put, 0 if the entries never expire
+     * @param unit unit of the time to live
+     */
+    public PersistentCache(long maxWeight, ToLongFunction<? super V> weigher, long timeToLive,
+        TimeUnit unit) {
+        this(maxWeight, weigher, timeToLive, unit, System::nanoTime);
+    }
+
+    /**
+     * constructor for the cache limiting the amount of the entries
+     *
+     * @param maxSize maximum amount of the entries
+     * @param timeToLive time to live of the entry after its put, 0 if the entries never expire
+     * @param unit unit of the time to live
+     */
+    public PersistentCache(int maxSize, long timeToLive, TimeUnit unit) {
+        this(maxSize, value -> 1, timeToLive, unit);
+    }
+
+    /**
+     * constructor for the cache limiting the amount of the entries, the entries never expire
+     *
+     * @param maxSize maximum amount of the entries
+     */
+    public PersistentCache(int maxSize) {
+        this(maxSize, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean isExpired(Entry<?> entry, long now) {
+        return entry.expiresAt - now <= 0;
+    }
+
+    /**
+     * Returns the value for the key and makes the key the most recently used one. The entry is
+     * moved by one CAS attempt, if another writer wins the order is left as is. The hit of the
+     * most recently used key writes nothing to the shared state
+     *
+     * @param key the key
+     * @return the value or null if there is no such key or it is expired
+     */
+    public V get(K key) {
+        State<K, V> curVersion = state.get();
+        Entry<V> entry = curVersion.entries.get(key);
+        long now = clock.getAsLong();
+        if (entry == null || isExpired(entry, now)) {
+            misses.increment();
+            if (entry != null) {
+                removeExpired(key, now);
+            }
+            return null;
+        }
+        hits.increment();
+        PersistentLinkedHashMap<K, Entry<V>> promoted = curVersion.entries.moveToLast(key);
+        if (promoted != curVersion.entries) {
+            state.compareAndSet(curVersion, new State<>(promoted, curVersion.weight));
+        }
+        return entry.value;
+    }
+
+    private void removeExpired(K key, long now) {
+        State<K, V> curVersion;
+        Entry<V> entry;
+        boolean success;
+        do {
+            curVersion = state.get();
+            entry = curVersion.entries.get(key);
+            if (entry == null || !isExpired(entry, now)) {
+                return;
+            }
+            success = state.compareAndSet(curVersion,
+                new State<>(curVersion.entries.remove(key), curVersion.weight - entry.weight));
+        } while (!success);
+        evictions.increment();
+    }
+
+    /**
+     * Puts the value for the key as the most recently used one and evicts the least recently used
+     * entries until the total weight fits the limit
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) {
+            throw new IllegalArgumentException("Weight of the value exceeds the max weight");
+        }
+        long now = clock.getAsLong();
+        Entry<V> entry = new Entry<>(value, weight,
+            timeToLive == 0 ? now + Long.MAX_VALUE : now + timeToLive);
+        State<K, V> curVersion;
+        State<K, V> newVersion;
+        int evicted;
+        boolean success;
+        do {
+            curVersion = state.get();
+            Entry<V> oldEntry = curVersion.entries.get(key);
+            PersistentLinkedHashMap<K, Entry<V>> entries = curVersion.entries.putLast(key, entry);
+            long newWeight = curVersion.weight + weight - (oldEntry == null ? 0 : oldEntry.weight);
+
+            //evict from the head: the least recently used and the expired entries
+            evicted = 0;
+            while (!entries.isEmpty() && (newWeight > maxWeight
+                || isExpired(entries.firstEntry().getValue(), now))) {
+                newWeight -= entries.firstEntry().getValue().weight;
+                entries = entries.removeFirst();
+                evicted++;
+            }
+            newVersion = new State<>(entries, newWeight);
+            success = state.compareAndSet(curVersion, newVersion);
+        } while (!success);
+        evictions.add(evicted);
+    }
+
+    /**
+     * Removes the entry for the key
+     */
+    public void remove(K key) {
+        State<K, V> curVersion;
+        Entry<V> entry;
+        boolean success;
+        do {
+            curVersion = state.get();
+            entry = curVersion.entries.get(key);
+            if (entry == null) {
+                return;
+            }
+            success = state.compareAndSet(curVersion,
+                new State<>(curVersion.entries.remove(key), curVersion.weight - entry.weight));
+        } while (!success);
+    }
+
+    /**
+     * @return amount of the entries including the expired ones not dropped yet
+     */
+    public int size() {
+        return state.get().entries.size();
+    }
+
+    /**
+     * @return total weight of the entries
+     */
+    public long weight() {
+        return state.get().weight;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return amount of the entries dropped because of the weight limit or the time to live
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return immutable version of the cache, its lookups neither wait nor change the order
+     */
+    public Snapshot<K, V> snapshot() {
+        return new Snapshot<>(state.get().entries, clock);
+    }
+
+    /**
+     * immutable version of the cache
+     *
+     * @param <K> type of the keys
+     * @param <V> type of the values
+     */
+    public static class Snapshot<K, V> {
+
+        private final PersistentLinkedHashMap<K, Entry<V>> entries;
+        private final LongSupplier clock;
+
+        private Snapshot(PersistentLinkedHashMap<K, Entry<V>> entries, LongSupplier clock) {
+            this.entries = entries;
+            this.clock = clock;
+        }
+
+        /**
+         * @param key the key
+         * @return the value or null if there is no such key or it is expired
+         */
+        public V get(K key) {
+            Entry<V> entry = entries.get(key);
+            return entry == null || isExpired(entry, clock.getAsLong()) ? null : entry.value;
+        }
+
+        /**
+         * @return amount of the entries including the expired ones
+         */
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder outString = new StringBuilder();
+            entries.forEach((key, entry) -> {
+                if (outString.length() != 0) {
+                    outString.append(", ");
+                }
+                outString.append(key).append('=').append(entry.value);
+            });
+            return "{" + outString + "}";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
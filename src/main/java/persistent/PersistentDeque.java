@@ -0,0 +1,381 @@
+package persistent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * persistent double-ended queue (Okasaki's real-time deque): two lazy streams for the beginning
+ * and the reversed ending of the queue. When one stream becomes more than BALANCE times longer
+ * than the other one, the elements are redistributed by a lazy rotation: every step of it moves
+ * at most BALANCE elements and is memoized, so all versions sharing the rotation pay for it once.
+ * Each version keeps a schedule for both streams and forces one or two steps of the pending
+ * rotation per operation, so the rotation is finished before the next one starts and pushes,
+ * pops and peeks at both ends take O(1) time in the worst case, however the versions are reused.
+ *
+ * @param <T> type of data to be stored in the deque
+ */
+public class PersistentDeque<T> {
+
+    /**
+     * balance factor of the streams and the amount of elements moved by one step of the rotation
+     */
+    private static final int BALANCE = 3;
+
+    private final Stream<T> front; //elements from the first one
+    private final int frontSize;
+    private final Stream<T> frontSchedule; //the unforced rest of the front
+    private final Stream<T> rear; //elements from the last one
+    private final int rearSize;
+    private final Stream<T> rearSchedule; //the unforced rest of the rear
+
+    /**
+     * element of the stream
+     */
+    private static class Cell<T> {
+
+        final T data;
+        final Stream<T> next;
+
+        Cell(T data, Stream<T> next) {
+            this.data = data;
+            this.next = next;
+        }
+    }
+
+    /**
+     * memoized suspension of the stream: the first cell is computed once when the stream is forced
+     * (null cell for the empty stream). Concurrent threads may both compute it, the results are
+     * equal
+     */
+    private static class Stream<T> {
+
+        private volatile Supplier<Cell<T>> suspension; //null after forcing
+        private Cell<T> cell; //published by the volatile write of the suspension
+
+        private Stream(Supplier<Cell<T>> suspension, Cell<T> cell) {
+            this.cell = cell;
+            this.suspension = suspension;
+        }
+
+        static <T> Stream<T> lazy(Supplier<Cell<T>> suspension) {
+            return new Stream<>(suspension, null);
+        }
+
+        static <T> Stream<T> of(Cell<T> cell) {
+            return new Stream<>(null, cell);
+        }
+
+        static <T> Stream<T> cons(T data, Stream<T> next) {
+            return of(new Cell<>(data, next));
+        }
+
+        Cell<T> force() {
+            Supplier<Cell<T>> curSuspension = suspension;
+            if (curSuspension != null) {
+                cell = curSuspension.get();
+                suspension = null;
+            }
+            return cell;
+        }
+    }
+
+    private PersistentDeque(Stream<T> front, int frontSize, Stream<T> frontSchedule,
+        Stream<T> rear, int rearSize, Stream<T> rearSchedule) {
+        this.front = front;
+        this.frontSize = frontSize;
+        this.frontSchedule = frontSchedule;
+        this.rear = rear;
+        this.rearSize = rearSize;
+        this.rearSchedule = rearSchedule;
+    }
+
+    /**
+     * constructor for the empty persistent deque
+     */
+    public PersistentDeque() {
+        this(Stream.of(null), 0, Stream.of(null), Stream.of(null), 0, Stream.of(null));
+    }
+
+    /**
+     * package-private constructor for the persistent deque containing given elements, the
+     * collection is iterated once [time O(N)]
+     *
+     * @param elements elements from the first one to the last one
+     */
+    PersistentDeque(Collection<? extends T> elements) {
+        int size = elements.size();
+        int frontSize = size / 2;
+        ArrayList<T> frontElements = new ArrayList<>(frontSize);
+        Stream<T> rear = Stream.of(null);
+        for (T element : elements) {
+            if (frontElements.size() < frontSize) {
+                frontElements.add(element);
+            } else {
+                rear = Stream.cons(element, rear);
+            }
+        }
+        Stream<T> front = Stream.of(null);
+        for (int i = frontSize - 1; i >= 0; i--) {
+            front = Stream.cons(frontElements.get(i), front);
+        }
+        this.front = front;
+        this.frontSize = frontSize;
+        this.frontSchedule = Stream.of(null);
+        this.rear = rear;
+        this.rearSize = size - frontSize;
+        this.rearSchedule = Stream.of(null);
+    }
+
+    /**
+     * force the first step of the schedule
+     *
+     * @return the rest of the schedule
+     */
+    private static <T> Stream<T> exec(Stream<T> schedule) {
+        Cell<T> cell = schedule.force();
+        return cell == null ? schedule : cell.next;
+    }
+
+    /**
+     * lazy stream of the first count elements of the stream
+     */
+    private static <T> Stream<T> take(int count, Stream<T> stream) {
+        return Stream.lazy(() -> {
+            if (count == 0) {
+                return null;
+            }
+            Cell<T> cell = stream.force();
+            return cell == null ? null : new Cell<>(cell.data, take(count - 1, cell.next));
+        });
+    }
+
+    /**
+     * skip first count elements of the stream [time O(count)]
+     */
+    private static <T> Stream<T> drop(int count, Stream<T> stream) {
+        for (; count > 0; count--) {
+            Cell<T> cell = stream.force();
+            if (cell == null) {
+                break;
+            }
+            stream = cell.next;
+        }
+        return stream;
+    }
+
+    /**
+     * put first count elements of the stream in the reversed order before the tail [time
+     * O(count)]
+     */
+    private static <T> Stream<T> prependReversed(int count, Stream<T> stream, Stream<T> tail) {
+        for (; count > 0; count--) {
+            Cell<T> cell = stream.force();
+            if (cell == null) {
+                break;
+            }
+            tail = Stream.cons(cell.data, tail);
+            stream = cell.next;
+        }
+        return tail;
+    }
+
+    /**
+     * lazy stream of the elements of the first stream followed by the reversed second one and the
+     * accumulated tail, every step moves one element of the first stream and BALANCE elements of
+     * the second one
+     */
+    private static <T> Stream<T> rotateReversed(Stream<T> first, Stream<T> reversed,
+        Stream<T> tail) {
+        return Stream.lazy(() -> {
+            Cell<T> cell = first.force();
+            if (cell == null) {
+                return prependReversed(Integer.MAX_VALUE, reversed, tail).force();
+            }
+            return new Cell<>(cell.data, rotateReversed(cell.next, drop(BALANCE, reversed),
+                prependReversed(BALANCE, reversed, tail)));
+        });
+    }
+
+    /**
+     * lazy stream of the elements of the first stream followed by the reversed second one without
+     * its first count elements
+     */
+    private static <T> Stream<T> rotateDropped(Stream<T> first, int count, Stream<T> reversed) {
+        if (count < BALANCE) {
+            return rotateReversed(first, drop(count, reversed), Stream.of(null));
+        }
+        return Stream.lazy(() -> {
+            Cell<T> cell = first.force();
+            return new Cell<>(cell.data,
+                rotateDropped(cell.next, count - BALANCE, drop(BALANCE, reversed)));
+        });
+    }
+
+    /**
+     * create new version starting the rotation if one stream is too long [time O(1)]
+     *
+     * @return new version of the deque
+     */
+    private static <T> PersistentDeque<T> balanced(Stream<T> front, int frontSize,
+        Stream<T> frontSchedule, Stream<T> rear, int rearSize, Stream<T> rearSchedule) {
+        int size = frontSize + rearSize;
+        if (frontSize > BALANCE * rearSize + 1) {
+            int newFrontSize = size / 2;
+            Stream<T> newFront = take(newFrontSize, front);
+            Stream<T> newRear = rotateDropped(rear, newFrontSize, front);
+            return new PersistentDeque<>(newFront, newFrontSize, newFront, newRear,
+                size - newFrontSize, newRear);
+        }
+        if (rearSize > BALANCE * frontSize + 1) {
+            int newRearSize = size / 2;
+            Stream<T> newRear = take(newRearSize, rear);
+            Stream<T> newFront = rotateDropped(front, newRearSize, rear);
+            return new PersistentDeque<>(newFront, size - newRearSize, newFront, newRear,
+                newRearSize, newRear);
+        }
+        return new PersistentDeque<>(front, frontSize, frontSchedule, rear, rearSize,
+            rearSchedule);
+    }
+
+    /**
+     * add given element to the beginning of the deque [time O(1)]
+     *
+     * @param data element to be inserted
+     * @return new version of the deque
+     */
+    public PersistentDeque<T> addFirst(T data) {
+        return balanced(Stream.cons(data, front), frontSize + 1, exec(frontSchedule), rear,
+            rearSize, exec(rearSchedule));
+    }
+
+    /**
+     * add given element to the end of the deque [time O(1)]
+     *
+     * @param data element to be inserted
+     * @return new version of the deque
+     */
+    public PersistentDeque<T> addLast(T data) {
+        return balanced(front, frontSize, exec(frontSchedule), Stream.cons(data, rear),
+            rearSize + 1, exec(rearSchedule));
+    }
+
+    /**
+     * Removes the first element in the deque [time O(1)]
+     *
+     * @return new version of the deque
+     */
+    public PersistentDeque<T> removeFirst() {
+        Cell<T> cell = front.force();
+        if (cell == null) {
+            if (rear.force() == null) {
+                throw new NoSuchElementException();
+            }
+            return new PersistentDeque<>(); //the only element is in the rear
+        }
+        return balanced(cell.next, frontSize - 1, exec(exec(frontSchedule)), rear, rearSize,
+            exec(exec(rearSchedule)));
+    }
+
+    /**
+     * Removes the last element in the deque [time O(1)]
+     *
+     * @return new version of the deque
+     */
+    public PersistentDeque<T> removeLast() {
+        Cell<T> cell = rear.force();
+        if (cell == null) {
+            if (front.force() == null) {
+                throw new NoSuchElementException();
+            }
+            return new PersistentDeque<>(); //the only element is in the front
+        }
+        return balanced(front, frontSize, exec(exec(frontSchedule)), cell.next, rearSize - 1,
+            exec(exec(rearSchedule)));
+    }
+
+    /**
+     * get the first element of the deque [time O(1)]
+     *
+     * @return first element
+     */
+    public T getFirst() {
+        Cell<T> cell = front.force();
+        if (cell == null) {
+            cell = rear.force();
+        }
+        if (cell == null) {
+            throw new NoSuchElementException();
+        }
+        return cell.data;
+    }
+
+    /**
+     * get the last element of the deque [time O(1)]
+     *
+     * @return last element
+     */
+    public T getLast() {
+        Cell<T> cell = rear.force();
+        if (cell == null) {
+            cell = front.force();
+        }
+        if (cell == null) {
+            throw new NoSuchElementException();
+        }
+        return cell.data;
+    }
+
+    /**
+     * @return amount of the elements in the deque [time O(1)]
+     */
+    public int size() {
+        return frontSize + rearSize;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return elements from the first one to the last one [time O(N)]
+     */
+    private ArrayList<T> toArrayList() {
+        ArrayList<T> out = new ArrayList<>(size());
+        for (Cell<T> cell = front.force(); cell != null; cell = cell.next.force()) {
+            out.add(cell.data);
+        }
+        int frontEnd = out.size();
+        for (Cell<T> cell = rear.force(); cell != null; cell = cell.next.force()) {
+            out.add(cell.data);
+        }
+        for (int i = frontEnd, j = out.size() - 1; i < j; i++, j--) {
+            T temp = out.get(i);
+            out.set(i, out.get(j));
+            out.set(j, temp);
+        }
+        return out;
+    }
+
+    /**
+     * convert the deque to PersistentLinkedList [time O(N)]
+     *
+     * @param powerOfBranchingFactor the branching factor of the linked list will be equals to
+     * 2^powerOfBranchingFactor
+     * @return PersistentLinkedList
+     */
+    public PersistentLinkedList<T> toPersistentLinkedList(int powerOfBranchingFactor) {
+        return new PersistentLinkedList<T>(powerOfBranchingFactor).addAll(0, toArrayList());
+    }
+
+    public Iterator<T> iterator() {
+        return toArrayList().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return toArrayList().toString();
+    }
+}
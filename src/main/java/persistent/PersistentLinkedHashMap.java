@@ -0,0 +1,270 @@
+package persistent;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * persistent map keeping the insertion order of the keys. Every entry gets the next sequence
+ * number when its key is inserted: the hash trie maps the keys to the entries, the Patricia trie
+ * of the sequence numbers keeps the order. Both structures are persistent, so every version shares
+ * them with the previous one. The first and the last entries are stored in the map itself.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class PersistentLinkedHashMap<K, V> {
+
+    private final PersistentTreeMap<K, Slot<K, V>> index;
+    private final PersistentLongMap<Slot<K, V>> order; //sequence numbers to the entries
+    private final Slot<K, V> first; //null for the empty map
+    private final Slot<K, V> last;
+    private final long nextSequence;
+
+    /**
+     * entry with its place in the order
+     */
+    private static class Slot<K, V> {
+
+        final K key;
+        final V value;
+        final long sequence;
+
+        Slot(K key, V value, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+    }
+
+    private PersistentLinkedHashMap(PersistentTreeMap<K, Slot<K, V>> index,
+        PersistentLongMap<Slot<K, V>> order, Slot<K, V> first, Slot<K, V> last,
+        long nextSequence) {
+        this.index = index;
+        this.order = order;
+        this.first = first;
+        this.last = last;
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * constructor for the empty persistent linked hash map
+     *
+     * @param powerOfBranchingFactor the branching factor of the hash trie will be equals to
+     * 2^powerOfBranchingFactor (from 1 to 5)
+     */
+    public PersistentLinkedHashMap(int powerOfBranchingFactor) {
+        this(new PersistentTreeMap<>(powerOfBranchingFactor), new PersistentLongMap<>(), null,
+            null, 0);
+    }
+
+    /**
+     * constructor for the empty persistent linked hash map with the branching factor 32
+     */
+    public PersistentLinkedHashMap() {
+        this(5);
+    }
+
+    /**
+     * Returns the value for the specified key [time O(log(BF, N))]
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public V get(K key) {
+        Slot<K, V> slot = index.get(key);
+        return slot == null ? null : slot.value;
+    }
+
+    public boolean containsKey(K key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return amount of the entries [time O(1)]
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * Puts the value for the key, the new key becomes the last one, the present key keeps its
+     * place [time O(log(BF, N) + 64)]
+     *
+     * @param key the key
+     * @param value the value
+     * @return new version of the map (this if the same value is already stored)
+     */
+    public PersistentLinkedHashMap<K, V> put(K key, V value) {
+        Slot<K, V> slot = index.get(key);
+        if (slot == null) {
+            return append(key, value);
+        }
+        if (slot.value == value) {
+            return this;
+        }
+        return replace(slot, new Slot<>(key, value, slot.sequence));
+    }
+
+    /**
+     * Puts the value for the key making the key the last one [time O(log(BF, N) + 64)]
+     *
+     * @param key the key
+     * @param value the value
+     * @return new version of the map (this if the key is already the last one with this value)
+     */
+    public PersistentLinkedHashMap<K, V> putLast(K key, V value) {
+        Slot<K, V> slot = index.get(key);
+        if (slot == null) {
+            return append(key, value);
+        }
+        if (slot == last && slot.value == value) {
+            return this;
+        }
+        return removeSlot(slot).append(key, value);
+    }
+
+    /**
+     * Moves the present key to the end of the order [time O(log(BF, N) + 64)]
+     *
+     * @param key the key
+     * @return new version of the map (this if there is no such key or it is the last one)
+     */
+    public PersistentLinkedHashMap<K, V> moveToLast(K key) {
+        Slot<K, V> slot = index.get(key);
+        if (slot == null || slot == last) {
+            return this;
+        }
+        return removeSlot(slot).append(key, slot.value);
+    }
+
+    private PersistentLinkedHashMap<K, V> append(K key, V value) {
+        Slot<K, V> slot = new Slot<>(key, value, nextSequence);
+        return new PersistentLinkedHashMap<>(index.put(key, slot), order.put(nextSequence, slot),
+            first == null ? slot : first, slot, nextSequence + 1);
+    }
+
+    /**
+     * @return the map with the new entry in the place of the old one
+     */
+    private PersistentLinkedHashMap<K, V> replace(Slot<K, V> oldSlot, Slot<K, V> newSlot) {
+        return new PersistentLinkedHashMap<>(index.put(newSlot.key, newSlot),
+            order.put(newSlot.sequence, newSlot), oldSlot == first ? newSlot : first,
+            oldSlot == last ? newSlot : last, nextSequence);
+    }
+
+    /**
+     * Removes the entry for the key [time O(log(BF, N) + 64)]
+     *
+     * @param key the key
+     * @return new version of the map (this if there is no such key)
+     */
+    public PersistentLinkedHashMap<K, V> remove(K key) {
+        Slot<K, V> slot = index.get(key);
+        return slot == null ? this : removeSlot(slot);
+    }
+
+    /**
+     * Removes the entry inserted first [time O(log(BF, N) + 64)]
+     *
+     * @return new version of the map
+     */
+    public PersistentLinkedHashMap<K, V> removeFirst() {
+        if (first == null) {
+            throw new NoSuchElementException();
+        }
+        return removeSlot(first);
+    }
+
+    private PersistentLinkedHashMap<K, V> removeSlot(Slot<K, V> slot) {
+        PersistentLongMap<Slot<K, V>> newOrder = order.remove(slot.sequence);
+        if (newOrder.isEmpty()) {
+            return new PersistentLinkedHashMap<>(index.remove(slot.key), newOrder, null, null,
+                nextSequence);
+        }
+        return new PersistentLinkedHashMap<>(index.remove(slot.key), newOrder,
+            slot == first ? newOrder.get(newOrder.firstKey()) : first,
+            slot == last ? newOrder.get(newOrder.lastKey()) : last, nextSequence);
+    }
+
+    /**
+     * @return the key inserted first [time O(1)]
+     */
+    public K firstKey() {
+        if (first == null) {
+            throw new NoSuchElementException();
+        }
+        return first.key;
+    }
+
+    /**
+     * @return the key inserted last [time O(1)]
+     */
+    public K lastKey() {
+        if (last == null) {
+            throw new NoSuchElementException();
+        }
+        return last.key;
+    }
+
+    /**
+     * @return the entry inserted first or null [time O(1)]
+     */
+    public Map.Entry<K, V> firstEntry() {
+        return first == null ? null : new AbstractMap.SimpleImmutableEntry<>(first.key,
+            first.value);
+    }
+
+    /**
+     * @return the entry inserted last or null [time O(1)]
+     */
+    public Map.Entry<K, V> lastEntry() {
+        return last == null ? null : new AbstractMap.SimpleImmutableEntry<>(last.key,
+            last.value);
+    }
+
+    /**
+     * @return iterator over the entries in the insertion order [time O(1) amortized per entry]
+     */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        Iterator<Slot<K, V>> slots = order.valueIterator();
+        return new Iterator<Map.Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                return slots.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                Slot<K, V> slot = slots.next();
+                return new AbstractMap.SimpleImmutableEntry<>(slot.key, slot.value);
+            }
+        };
+    }
+
+    /**
+     * Performs the action for every entry in the insertion order [time O(N)]
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        order.forEach((sequence, slot) -> action.accept(slot.key, slot.value));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder outString = new StringBuilder();
+        Iterator<Map.Entry<K, V>> it = iterator();
+        while (it.hasNext()) {
+            outString.append(it.next());
+            if (it.hasNext()) {
+                outString.append(", ");
+            }
+        }
+        return "{" + outString + "}";
+    }
+}
@@ -1,23 +1,45 @@
 package persistent;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.naming.OperationNotSupportedException;
 
 public class PersistentLinkedList<T> {
 
+    /**
+     * automatic compaction is considered only for graphs with at least this amount of leaves
+     */
+    static final int COMPACTION_MIN_TREE_SIZE = 1024;
+    /**
+     * the graph is compacted when gaps take more than this part of the leaves owned by the list
+     * (its gaps and its own elements)
+     */
+    static final double COMPACTION_GAP_RATIO = 0.5;
+    /**
+     * the graph is compacted when more than this part of the neighbouring elements in the linked
+     * list are not neighbours in the graph
+     */
+    static final double COMPACTION_DISORDER_RATIO = 0.5;
+
     final Node<T> root;
     final int branchingFactor;
     final int depth;
     final int base; //BF ^ (depth - 1)
     int treeSize;
-    SortedSet<Integer> unusedTreeIndices = new TreeSet<>();
-    int indexCorrespondingToTheFirstElement;
-    int indexCorrespondingToTheLatestElement;
+    IndexTree unusedTreeIndices; //sorted graph indices of the gaps
+    //graph indices in the linked list order, runs bound to another graph come from concatenation
+    IndexTree listOrder;
 
     /**
      * package-private constructor for the persistent linked list
@@ -28,22 +50,17 @@ public class PersistentLinkedList<T> {
      * @param base branchingFactor ^ (depth - 1)
      * @param treeSize number of leaves in the graph or elements with gaps in the persistent array
      * @param unusedTreeIndices indices of the gaps
-     * @param indexCorrespondingToTheFirstElement graph index corresponding to the first element in
-     * the linked list
-     * @param indexCorrespondingToTheLatestElement graph index corresponding to the last element in
-     * the linked list
+     * @param listOrder graph indices in the linked list order
      */
     PersistentLinkedList(Node<T> root, int branchingFactor, int depth, int base, int treeSize,
-        SortedSet<Integer> unusedTreeIndices, int indexCorrespondingToTheFirstElement,
-        int indexCorrespondingToTheLatestElement) {
+        IndexTree unusedTreeIndices, IndexTree listOrder) {
         this.root = root;
         this.branchingFactor = branchingFactor;
         this.depth = depth;
         this.base = base;
         this.treeSize = treeSize;
-        this.unusedTreeIndices.addAll(unusedTreeIndices);
-        this.indexCorrespondingToTheFirstElement = indexCorrespondingToTheFirstElement;
-        this.indexCorrespondingToTheLatestElement = indexCorrespondingToTheLatestElement;
+        this.unusedTreeIndices = unusedTreeIndices;
+        this.listOrder = listOrder;
     }
 
     /**
@@ -63,311 +80,231 @@ public class PersistentLinkedList<T> {
         this.depth = 1;
         this.base = 1;
         this.treeSize = 0;
-        this.indexCorrespondingToTheFirstElement = 0;
-        this.indexCorrespondingToTheLatestElement = 0;
+        this.unusedTreeIndices = null;
+        this.listOrder = null;
     }
 
     /**
-     * change (add or remove) (un)used indices in the graph backend [time O(1)]
+     * get the lowest internal node on the path to the ith element in the PersistentArray [time
+     * O(log(BF, N))]
      *
-     * @param treeIndex the index
-     * @param removeFromUnused if true then consider "the gap" filled; if false, create a "new gap"
-     */
-    private void changeUnusedIndices(int treeIndex, boolean removeFromUnused) {
-        if (removeFromUnused) {
-            this.unusedTreeIndices.remove(treeIndex);
-        } else {
-            if (treeIndex < this.treeSize) {
-                this.unusedTreeIndices.add(treeIndex);
-            }
-        }
-    }
-
-    /**
-     * metadata for the graph traversal
+     * @param treeIndex index relating to PersistentArray location
+     * @return Node whose children are the leaves containing needed element
      */
-    private class TraverseData {
-
-        Node<T> currentNode;
-        Node<T> currentNewNode;
-        Node<T> newRoot;
-        int index;
+    private Node<T> getLeafParent(int treeIndex) {
+        Node<T> currentNode = this.root;
 
-        int base;
+        for (int b = base; b > 1; b = b / branchingFactor) {
+            int nextBranch = treeIndex / b;
 
-        public TraverseData(Node<T> currentNode, Node<T> currentNewNode, Node<T> newRoot, int index,
-            int base) {
-            this.currentNode = currentNode;
-            this.currentNewNode = currentNewNode;
-            this.newRoot = newRoot;
-            this.index = index;
-            this.base = base;
+            //down
+            currentNode = currentNode.get(nextBranch);
+            treeIndex = treeIndex % b;
         }
-
+        return currentNode;
     }
 
     /**
-     * traverse one level in the graph with copying [time O(BF)=O(1)]
+     * get the lowest internal node on the path to the element of the run in its graph [time
+     * O(log(BF, N))]
      *
-     * @param data metadata before this level
-     * @return metadata after this level
+     * @param run run of the order tree containing the element
+     * @param treeIndex graph index of the element
+     * @return Node whose children are the leaves containing needed element
      */
-    private TraverseData traverseOneLevel(TraverseData data) {
-        Node<T> currentNode = data.currentNode;
-        Node<T> currentNewNode = data.currentNewNode;
-        int nextBranch = data.index / data.base;
-
-        currentNewNode.set(nextBranch, new Node<>(branchingFactor));
-        for (int anotherBranch = 0; anotherBranch < branchingFactor; anotherBranch++) {
-            if (anotherBranch == nextBranch) {
-                continue;
-            }
-            currentNewNode.set(anotherBranch, currentNode.get(anotherBranch));
+    private Node<T> getLeafParent(IndexTree.Run run, int treeIndex) {
+        if (run.graph == null) {
+            return getLeafParent(treeIndex);
         }
-
-        //down
-        currentNode = currentNode.get(nextBranch);
-        currentNewNode = currentNewNode.get(nextBranch);
-        return new TraverseData(currentNode, currentNewNode, data.newRoot, data.index % data.base,
-            data.base);
+        return graphOf(run).getLeafParent(treeIndex);
     }
 
     /**
-     * traverse the old structure while creating the new one and copying data into it [time
-     * O(log(BF, N))]
-     *
-     * @param treeIndex destination index in the array
-     * @return metadata of traversing
+     * @return the graph of this version as PersistentArray sharing the same nodes [time O(1)]
      */
-    private TraverseData traverse(int treeIndex) {
-        Node<T> newRoot = new Node<>(branchingFactor);
-        Node<T> currentNode = this.root;
-        Node<T> currentNewNode = newRoot;
-
-        for (int b = base; b > 1; b = b / branchingFactor) {
-            TraverseData data = traverseOneLevel(
-                new TraverseData(currentNode, currentNewNode, newRoot, treeIndex, b));
-            currentNode = data.currentNode;
-            currentNewNode = data.currentNewNode;
-            treeIndex = data.index;
-        }
-        return new TraverseData(currentNode, currentNewNode, newRoot, treeIndex, 1);
+    private PersistentArray<T> graph() {
+        return new PersistentArray<>(this.root, this.branchingFactor, this.depth, this.base,
+            this.treeSize);
     }
 
     /**
-     * find index in the graph structure given the index in the linked list  [time O(N * log(BF,
-     * N))]
+     * graph storing the elements of the run, the elements of unbound runs are stored in the graph
+     * of this version [time O(1)]
      *
-     * @param listIndex index of the element in the linked list
-     * @return corresponding index in the graph backend
+     * @param run run of the order tree
+     * @return the graph
      */
-    private int searchIndex(int listIndex) {
-        int currentTreeIndex = this.indexCorrespondingToTheFirstElement;
-        Node<T> currentNode = getHelper(currentTreeIndex);
-        for (int i = 0; i < listIndex; i++) {
-            currentTreeIndex = currentNode.nextIndex;
-            currentNode = getHelper(currentTreeIndex);
-        }
-        return currentTreeIndex;
+    @SuppressWarnings("unchecked")
+    private PersistentArray<T> graphOf(IndexTree.Run run) {
+        return run.graph == null ? graph() : (PersistentArray<T>) run.graph;
     }
 
     /**
-     * get ith element in the PersistentArray [time O(log(BF, N))]
-     *
-     * @param treeIndex index relating to PersistentArray location
-     * @return Node representing needed element
+     * remembers the path to the latest visited leaf and the latest visited run of the order tree,
+     * so walking through the linked list searches the order tree once per run and descends only
+     * from the lowest common ancestor of the neighbouring elements [time amortized O(1) per
+     * element for the compacted graph]
      */
-    private Node<T> getHelper(int treeIndex) {
-        Node<T> currentNode = this.root;
+    private class PathCache {
+
+        private final PersistentArray<T> ownGraph = graph();
+        private PersistentArray<T> graph; //graph of the cached path
+        //nodes from the root to the lowest internal node on the path to the cached leaf
+        private final ArrayList<Node<T>> path = new ArrayList<>();
+        private int cachedTreeIndex = -1;
+        private IndexTree.Run run;
+
+        /**
+         * get ith element in the given graph reusing the cached path
+         *
+         * @param graph the graph
+         * @param treeIndex index relating to PersistentArray location
+         * @return Node representing needed element
+         */
+        Node<T> get(PersistentArray<T> graph, int treeIndex) {
+            int depth = graph.depth;
+            if (graph != this.graph) {
+                this.graph = graph;
+                path.clear();
+                for (int level = 0; level < depth; level++) {
+                    path.add(null);
+                }
+                path.set(0, graph.root);
+                cachedTreeIndex = -1;
+            }
 
-        for (int b = base; b > 1; b = b / branchingFactor) {
-            int nextBranch = treeIndex / b;
+            int level = 0;
+            int span = graph.base * branchingFactor; //amount of leaves under the node on the level
+            if (cachedTreeIndex != -1) {
+                level = depth - 1;
+                span = branchingFactor;
+                while (level > 0 && treeIndex / span != cachedTreeIndex / span) {
+                    level--;
+                    span *= branchingFactor;
+                }
+            }
 
             //down
-            currentNode = currentNode.get(nextBranch);
-            treeIndex = treeIndex % b;
+            for (int b = span / branchingFactor; level < depth - 1; level++, b /= branchingFactor) {
+                path.set(level + 1, path.get(level).get((treeIndex / b) % branchingFactor));
+            }
+            cachedTreeIndex = treeIndex;
+            return path.get(depth - 1).get(treeIndex % branchingFactor);
+        }
+
+        /**
+         * find graph index of the ith element of the linked list reusing the cached run
+         *
+         * @param listIndex index of the element in the linked list
+         * @return corresponding index in the graph storing the element
+         */
+        int treeIndex(int listIndex) {
+            if (run == null || listIndex < run.position || listIndex >= run.position + run.length) {
+                run = IndexTree.runAt(listOrder, listIndex);
+            }
+            return run.start + listIndex - run.position;
+        }
+
+        /**
+         * @return true if the latest found element is stored in the graph of this version
+         */
+        boolean inOwnGraph() {
+            return run.graph == null;
+        }
+
+        /**
+         * get the ith element of the linked list reusing the cached run and path
+         *
+         * @param listIndex index of the element in the linked list
+         * @return Node representing needed element
+         */
+        Node<T> getAt(int listIndex) {
+            int treeIndex = treeIndex(listIndex);
+            return get(inOwnGraph() ? ownGraph : graphOf(run), treeIndex);
         }
-        return currentNode.get(treeIndex);
     }
 
     /**
-     * get the first element of the linked list [time O(N * log(BF, N))]
+     * get the first element of the linked list [time O(log(N) + log(BF, N))]
      *
      * @return first element
      */
     public T getFirst() {
-        return this.getHelper(this.indexCorrespondingToTheFirstElement).data;
+        return get(0);
     }
 
     /**
-     * get the last element of the linked list [time O(N * log(BF, N))]
+     * get the last element of the linked list [time O(log(N) + log(BF, N))]
      *
      * @return last element
      */
     public T getLast() {
-        return this.getHelper(this.indexCorrespondingToTheLatestElement).data;
+        return get(size() - 1);
     }
 
     /**
-     * get the ith element of the linked list [time O(N * log(BF, N))]
+     * get the ith element of the linked list [time O(log(N) + log(BF, N))]
      *
      * @param listIndex index of the element to be returned
      * @return ith element
      */
     public T get(int listIndex) {
-        int treeIndex = searchIndex(listIndex);
-        return this.getHelper(treeIndex).data;
+        IndexTree.Run run = IndexTree.runAt(this.listOrder, listIndex);
+        int treeIndex = run.start + listIndex - run.position;
+        return getLeafParent(run, treeIndex).get(treeIndex % branchingFactor).data;
     }
 
     /**
-     * add the element to the end of the graph [time O(log(BF, N))]
+     * add given element to the ith place of the linked list (current ith element will become i+1)
+     * [time O(log(N) + log(BF, N))]
      *
-     * @param data the element to be added
+     * @param listIndex index of the element where to insert new data
+     * @param data data element to be inserted
      * @return new version of the structure
      */
-    private PersistentLinkedList<T> addHelper(T data) {
-        //there's still space in the latest element
-        if (this.treeSize == 0 || this.treeSize % branchingFactor != 0) {
-            return setHelper(this.treeSize, data);
-        }
-
-        //there's still space for the new data
-        if (this.base * branchingFactor > this.treeSize) {
-            Node<T> newRoot = new Node<>(branchingFactor);
-
-            Node<T> currentNode = this.root;
-            Node<T> currentNewNode = newRoot;
-
-            int index = this.treeSize;
-            int b;
-            for (b = base; b > 0; b = b / branchingFactor) {
-                TraverseData traverseData = traverseOneLevel(
-                    new TraverseData(currentNode, currentNewNode, newRoot, index, b));
-                currentNode = traverseData.currentNode;
-                currentNewNode = traverseData.currentNewNode;
-                index = traverseData.index;
-
-                if (currentNode == null) {
-                    b = b / branchingFactor;
-                    break;
-                }
-            }
-
-            while (b > 1) {
-                currentNewNode.set(0, new Node<>(branchingFactor));
-                currentNewNode = currentNewNode.get(0);
-                index = index % b;
-                b = b / branchingFactor;
-            }
-            currentNewNode.set(0, new Node<>(branchingFactor, data));
-
-            return new PersistentLinkedList<>(newRoot, this.branchingFactor, this.depth, this.base,
-                this.treeSize + 1, unusedTreeIndices, indexCorrespondingToTheFirstElement,
-                indexCorrespondingToTheLatestElement);
-        }
-
-        //root overflow
-        Node<T> newRoot = new Node<>(branchingFactor);
-        newRoot.set(0, this.root);
-        newRoot.set(1, new Node<>(branchingFactor));
-        //newRoot[2..]=null
-        Node<T> currentNewNode = newRoot.get(1);
-
-        int b = base;
-        while (b > 1) {
-            currentNewNode.set(0, new Node<>(branchingFactor));
-            currentNewNode = currentNewNode.get(0);
-            b = b / branchingFactor;
+    public PersistentLinkedList<T> add(int listIndex, T data) {
+        if (listIndex < 0 || listIndex > this.size()) {
+            throw new IndexOutOfBoundsException("Index: " + listIndex + ", Size: " + this.size());
         }
-        currentNewNode.set(0, new Node<>(branchingFactor, data));
-
-        return new PersistentLinkedList<>(newRoot, this.branchingFactor, this.depth + 1,
-            this.base * branchingFactor, this.treeSize + 1, unusedTreeIndices,
-            indexCorrespondingToTheFirstElement, indexCorrespondingToTheLatestElement);
+        return insertHelper(listIndex, data, freeTreeIndex()).compactIfNeeded();
     }
 
     /**
-     * set new value to the given element in the graph [time O(log(BF, N))]
+     * graph index to be occupied by the next inserted element: the first gap or the end of the
+     * graph [time O(log(N))]
      *
-     * @param treeIndex graph index of the element to be changed
-     * @param data new value of the element
-     * @return new version of the structure
+     * @return graph index for the new element
      */
-    private PersistentLinkedList<T> setHelper(int treeIndex, T data) {
-        int newSize = this.treeSize;
-        if (newSize == treeIndex) {
-            newSize++;
+    private int freeTreeIndex() {
+        if (unusedTreeIndices == null) {
+            return this.treeSize;
         }
-
-        TraverseData traverseData = traverse(treeIndex);
-
-        traverseData.currentNewNode.set(traverseData.index, new Node<>(branchingFactor, data));
-        for (int i = 0; i < branchingFactor; i++) {
-            if (i == traverseData.index) {
-                continue;
-            }
-            traverseData.currentNewNode.set(i, traverseData.currentNode.get(i));
-        }
-
-        return new PersistentLinkedList<>(traverseData.newRoot, branchingFactor, depth, base,
-            newSize, unusedTreeIndices, indexCorrespondingToTheFirstElement,
-            indexCorrespondingToTheLatestElement);
+        return IndexTree.select(unusedTreeIndices, 0);
     }
 
     /**
-     * add given element to the ith place of the linked list (current ith element will become i+1)
-     * [time O(N * log(BF, N))]
+     * insert given element into the first gap or to the end of the graph, only one leaf is
+     * written [time O(log(N) + log(BF, N))]
      *
-     * @param listIndex index of the element where to insert new data
+     * @param listIndex index of the new element in the linked list
      * @param data data element to be inserted
-     * @return new version of the structure
+     * @param newElementTreeIndex graph index of the new element, given by freeTreeIndex()
+     * @return new version of the structure (not compacted)
      */
-    public PersistentLinkedList<T> add(int listIndex, T data) {
-        int beforeTreeIndex;
-        int afterTreeIndex;
-        if (listIndex == 0) {
-            beforeTreeIndex = -1;
-            if (this.treeSize == 0) {
-                afterTreeIndex = -1;
-            } else {
-                afterTreeIndex = this.indexCorrespondingToTheFirstElement;
-            }
-        } else if (listIndex == this.treeSize) {
-            beforeTreeIndex = this.indexCorrespondingToTheLatestElement;
-            afterTreeIndex = -1;
-        } else {
-            afterTreeIndex = searchIndex(listIndex);
-            beforeTreeIndex = getHelper(afterTreeIndex).previousIndex;
-        }
-
-        int newElementTreeIndex;
-        PersistentLinkedList<T> newVersion;
-        if (unusedTreeIndices.isEmpty()) {
-            newElementTreeIndex = this.treeSize;
-            newVersion = this.addHelper(data);
-        } else {
-            newElementTreeIndex = unusedTreeIndices.first();
-            newVersion = this.setHelper(newElementTreeIndex, data);
-        }
-        newVersion.changeUnusedIndices(newElementTreeIndex, true);
-
-        if (beforeTreeIndex != -1) {
-            newVersion = newVersion.changeLinks(beforeTreeIndex, newElementTreeIndex);
-        } else {
-            newVersion.indexCorrespondingToTheFirstElement = newElementTreeIndex;
-        }
-
-        if (afterTreeIndex != -1) {
-            newVersion = newVersion.changeLinks(newElementTreeIndex, afterTreeIndex);
-        } else {
-            newVersion.indexCorrespondingToTheLatestElement = newElementTreeIndex;
-        }
-
+    private PersistentLinkedList<T> insertHelper(int listIndex, T data, int newElementTreeIndex) {
+        TreeMap<Integer, Node<T>> edits = new TreeMap<>();
+        edits.put(newElementTreeIndex, new Node<>(branchingFactor, data));
+
+        PersistentLinkedList<T> newVersion = editHelper(edits,
+            Math.max(this.treeSize, newElementTreeIndex + 1));
+        newVersion.unusedTreeIndices = IndexTree
+            .removeSorted(this.unusedTreeIndices, newElementTreeIndex);
+        newVersion.listOrder = IndexTree.insert(this.listOrder, listIndex, newElementTreeIndex);
         return newVersion;
     }
 
     /**
-     * add given element to the beginning of the linked list [time O(log(BF, N))]
+     * add given element to the beginning of the linked list [time O(log(N) + log(BF, N))]
      *
      * @param data element to be inserted
      * @return new version of the structure
@@ -377,265 +314,427 @@ public class PersistentLinkedList<T> {
     }
 
     /**
-     * add given element to the end of the linked list [time O(log(BF, N))]
+     * add given element to the end of the linked list [time O(log(N) + log(BF, N))]
      *
      * @param data element to be inserted
      * @return new version of the structure
      */
     public PersistentLinkedList<T> addLast(T data) {
-        return add(this.treeSize, data);
+        return add(this.size(), data);
     }
 
     /**
-     * change links not modifying the nodes and not creating the new structure (currently useful
-     * only for outer usages)
+     * Removes the ith element in the linked list [time O(log(N) + log(BF, N))]
      *
-     * @param treeIndexFrom graph index of preceding element
-     * @param treeIndexTo graph index of following element
+     * @param listIndex index of the element in the linked list to be removed
+     * @return new version of the structure
      */
-    void setLinks(int treeIndexFrom, int treeIndexTo) {
-        if (treeIndexTo >= this.treeSize) {
-            treeIndexTo = -1;
-        }
-        this.setLinksHelper(treeIndexFrom, treeIndexTo, false);
-        this.setLinksHelper(treeIndexTo, treeIndexFrom, true);
+    public PersistentLinkedList<T> remove(int listIndex) {
+        return removeHelper(listIndex, IndexTree.runAt(this.listOrder, listIndex))
+            .compactIfNeeded();
     }
 
     /**
-     * change links not modifying the nodes and not creating the new structure (currently useful
-     * only for outer usages)
+     * Removes the ith element in the linked list, the element stored in the graph of this version
+     * becomes a gap [time O(log(N) + log(BF, N))]
      *
-     * @param treeIndex graph index of the element whose link is going to be changed
-     * @param data new value of the link
-     * @param setPreviousIndex if true then previousIndex will be changed to given value, nextIndex
-     * will be copied
+     * @param listIndex index of the element in the linked list to be removed
+     * @param run run of the order tree containing the element
+     * @return new version of the structure (not compacted)
      */
-    private void setLinksHelper(int treeIndex, int data, boolean setPreviousIndex) {
-        if (treeIndex == -1) {
-            return;
+    private PersistentLinkedList<T> removeHelper(int listIndex, IndexTree.Run run) {
+        if (run.graph != null) { //the element is stored in the graph of another list
+            return withListOrder(IndexTree.remove(this.listOrder, listIndex));
         }
+        int treeIndex = run.start + listIndex - run.position;
+        TreeMap<Integer, Node<T>> edits = new TreeMap<>();
+        edits.put(treeIndex, new Node<>(branchingFactor, null));
+        return removeAllHelper(edits, new int[]{treeIndex},
+            IndexTree.remove(this.listOrder, listIndex));
+    }
 
-        Node<T> node = getHelper(treeIndex);
-        if (setPreviousIndex) {
-            node.previousIndex = data;
-        } else {
-            node.nextIndex = data;
-        }
+    /**
+     * Removes the first element in the linked list [time O(log(N) + log(BF, N))]
+     *
+     * @return new version of the structure
+     */
+    public PersistentLinkedList<T> removeFirst() {
+        return remove(0);
     }
 
     /**
-     * change links (element order in the linked list) between two nodes in the graph [time
-     * O(log(BF, N))]
+     * Removes the last element in the linked list [time O(log(N) + log(BF, N))]
      *
-     * @param treeIndexFrom graph index of preceding element
-     * @param treeIndexTo graph index of following element
      * @return new version of the structure
      */
-    private PersistentLinkedList<T> changeLinks(int treeIndexFrom, int treeIndexTo) {
-        PersistentLinkedList<T> newVersion = this
-            .changeLinksHelper(treeIndexFrom, treeIndexTo, false);
-        return newVersion.changeLinksHelper(treeIndexTo, treeIndexFrom, true);
+    public PersistentLinkedList<T> removeLast() {
+        return remove(this.size() - 1);
     }
 
     /**
-     * change links (element order in the linked list) between two nodes in the graph [time
-     * O(log(BF, N))]
+     * insert all elements of the collection starting from the ith place of the linked list, new
+     * elements are stored contiguously at the end of the graph [time O(K + log(N) + log(BF,
+     * N))]
      *
-     * @param treeIndex graph index of the element whose link is going to be changed
-     * @param data new value of the link
-     * @param setPreviousIndex if true then previousIndex will be changed to given value, nextIndex
-     * will be copied
+     * @param listIndex index of the first inserted element in the linked list
+     * @param data elements to be inserted
      * @return new version of the structure
      */
-    private PersistentLinkedList<T> changeLinksHelper(int treeIndex, int data,
-        boolean setPreviousIndex) {
-        if (treeIndex == -1) {
+    public PersistentLinkedList<T> addAll(int listIndex, Collection<? extends T> data) {
+        if (listIndex < 0 || listIndex > this.size()) {
+            throw new IndexOutOfBoundsException("Index: " + listIndex + ", Size: " + this.size());
+        }
+        if (data.isEmpty()) {
             return this;
         }
 
-        TraverseData traverseData = traverse(treeIndex);
-        int finalIndex = traverseData.index;
-        traverseData.currentNewNode
-            .set(finalIndex,
-                new Node<>(branchingFactor, traverseData.currentNode.get(finalIndex).data));
-        if (setPreviousIndex) {
-            traverseData.currentNewNode.get(finalIndex).previousIndex = data; //new
-            traverseData.currentNewNode.get(finalIndex).nextIndex = traverseData.currentNode
-                .get(finalIndex).nextIndex; //old
-        } else {
-            traverseData.currentNewNode.get(finalIndex).nextIndex = data; //new
-            traverseData.currentNewNode.get(finalIndex).previousIndex = traverseData.currentNode
-                .get(finalIndex).previousIndex; //old
+        TreeMap<Integer, Node<T>> edits = new TreeMap<>();
+        int firstNewTreeIndex = this.treeSize;
+        int newTreeSize = this.treeSize;
+        for (T element : data) {
+            edits.put(newTreeSize++, new Node<>(branchingFactor, element));
         }
 
-        for (int i = 0; i < branchingFactor; i++) {
-            if (i == finalIndex) {
-                continue;
-            }
-            traverseData.currentNewNode.set(i, traverseData.currentNode.get(i));
+        PersistentLinkedList<T> newVersion = editHelper(edits, newTreeSize);
+        newVersion.listOrder = IndexTree.insertRun(this.listOrder, listIndex, firstNewTreeIndex,
+            newTreeSize - firstNewTreeIndex);
+        return newVersion.compactIfNeeded();
+    }
+
+    /**
+     * Removes the elements of the linked list from fromIndex (inclusive) to toIndex (exclusive)
+     * in one pass [time O(K * log(BF, N) + log(N))]
+     *
+     * @param fromIndex index of the first element to be removed
+     * @param toIndex index after the last element to be removed
+     * @return new version of the structure
+     */
+    public PersistentLinkedList<T> removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || fromIndex > toIndex || toIndex > this.size()) {
+            throw new IndexOutOfBoundsException(
+                "From: " + fromIndex + ", To: " + toIndex + ", Size: " + this.size());
         }
+        if (fromIndex == toIndex) {
+            return this;
+        }
+        IndexTree.Split head = IndexTree.split(this.listOrder, fromIndex);
+        IndexTree.Split tail = IndexTree.split(head.right, toIndex - fromIndex);
 
-        return new PersistentLinkedList<>(traverseData.newRoot, branchingFactor, depth, base,
-            treeSize, unusedTreeIndices, indexCorrespondingToTheFirstElement,
-            indexCorrespondingToTheLatestElement);
+        TreeMap<Integer, Node<T>> edits = new TreeMap<>();
+        int[] removedTreeIndices = IndexTree.toArray(tail.left);
+        for (int treeIndex : removedTreeIndices) {
+            edits.put(treeIndex, new Node<>(branchingFactor, null));
+        }
+        return removeAllHelper(edits, removedTreeIndices,
+            IndexTree.concat(head.left, tail.right)).compactIfNeeded();
     }
 
-
     /**
-     * Removes the ith element in the linked list [time O(N * log(BF, N))]
+     * Removes all elements of the linked list satisfying the predicate in one pass [time O(N *
+     * log(BF, N))]
      *
-     * @param listIndex index of the element in the linked list to be removed
+     * @param filter predicate returning true for the elements to be removed
      * @return new version of the structure
      */
-    public PersistentLinkedList<T> remove(int listIndex) {
-        if (this.treeSize == 1) {
-            PersistentLinkedList<T> out = this.setHelper(0, null);
-            out.treeSize = 0;
-            return out;
-        }
-        int treeIndex;
-        if (listIndex == 0) {
-            treeIndex = this.indexCorrespondingToTheFirstElement;
-        } else if (listIndex == this.treeSize - 1) {
-            treeIndex = this.indexCorrespondingToTheLatestElement;
-        } else {
-            treeIndex = searchIndex(listIndex);
-        }
-
-        Node<T> toBeRemoved = this.getHelper(treeIndex);
-        PersistentLinkedList<T> newVersion = this
-            .changeLinks(toBeRemoved.previousIndex, toBeRemoved.nextIndex);
-        if (listIndex == 0) {
-            newVersion.indexCorrespondingToTheFirstElement = toBeRemoved.nextIndex;
-        } else if (listIndex == this.treeSize - 1) {
-            newVersion.indexCorrespondingToTheLatestElement = toBeRemoved.previousIndex;
-        }
-
-        if (treeIndex == this.treeSize - 1) {
-            if (treeIndex != 0) {
-                newVersion = newVersion.pop();
-                while (newVersion.unusedTreeIndices.contains(newVersion.treeSize - 1)) {
-                    newVersion.changeUnusedIndices(newVersion.treeSize - 1, true);
-                    newVersion = newVersion.pop();
-                }
-            } else {
-                newVersion.treeSize--;
+    public PersistentLinkedList<T> removeIf(Predicate<? super T> filter) {
+        ArrayList<Integer> removedListIndices = new ArrayList<>();
+        ArrayList<Integer> removedTreeIndexList = new ArrayList<>();
+        int size = this.size();
+        PathCache pathCache = new PathCache();
+        for (int listIndex = 0; listIndex < size; listIndex++) {
+            int treeIndex = pathCache.treeIndex(listIndex);
+            if (filter.test(pathCache.getAt(listIndex).data)) {
+                removedListIndices.add(listIndex);
+                removedTreeIndexList.add(pathCache.inOwnGraph() ? treeIndex : -1);
             }
-            return newVersion;
-        } //else
+        }
+        if (removedListIndices.isEmpty()) {
+            return this;
+        }
 
-        PersistentLinkedList<T> newVersion2 = newVersion.setHelper(treeIndex, null);
-        newVersion2.changeUnusedIndices(treeIndex, false);
-        return newVersion2;
+        TreeMap<Integer, Node<T>> edits = new TreeMap<>();
+        IndexTree newListOrder = this.listOrder;
+        for (int i = removedListIndices.size() - 1; i >= 0; i--) {
+            int treeIndex = removedTreeIndexList.get(i);
+            if (treeIndex != -1) { //elements of another graph only leave the order
+                edits.put(treeIndex, new Node<>(branchingFactor, null));
+            }
+            newListOrder = IndexTree.remove(newListOrder, removedListIndices.get(i));
+        }
+        int[] removedTreeIndices = new int[edits.size()];
+        int i = 0;
+        for (int treeIndex : edits.keySet()) {
+            removedTreeIndices[i++] = treeIndex;
+        }
+        return removeAllHelper(edits, removedTreeIndices, newListOrder).compactIfNeeded();
     }
 
     /**
-     * Removes the first element in the linked list [time O(log(BF, N))]
+     * append all elements of the other linked list to the end of this one. The order of the other
+     * list is joined to the order of this one with its runs bound to the graph of the other
+     * version, so nothing is copied: the graph of the other list is kept until compact() is
+     * called, the automatic compaction never copies it [time O(log(N))]
      *
+     * @param other linked list with the same branching factor
      * @return new version of the structure
      */
-    public PersistentLinkedList<T> removeFirst() {
-        return remove(0);
+    public PersistentLinkedList<T> concat(PersistentLinkedList<T> other) {
+        if (other.branchingFactor != this.branchingFactor) {
+            throw new IllegalArgumentException("Branching factors are different");
+        }
+        if (other.size() == 0) {
+            return this;
+        }
+        if (this.size() == 0) {
+            return other;
+        }
+        return withListOrder(
+            IndexTree.concat(this.listOrder, IndexTree.bind(other.listOrder, other.graph())));
     }
 
     /**
-     * Removes the last element in the linked list [time O(log(BF, N))]
+     * split the linked list into the first listIndex elements and the rest. Both parts share the
+     * graph of this version, graph indices of the other part are left unused until compact() is
+     * called, they are not counted as gaps by the automatic compaction [time O(log(N))]
      *
-     * @return new version of the structure
+     * @param listIndex amount of elements in the first part
+     * @return both parts
      */
-    public PersistentLinkedList<T> removeLast() {
-        return remove(this.treeSize - 1);
+    public Split<T> splitAt(int listIndex) {
+        if (listIndex < 0 || listIndex > this.size()) {
+            throw new IndexOutOfBoundsException("Index: " + listIndex + ", Size: " + this.size());
+        }
+        IndexTree.Split split = IndexTree.split(this.listOrder, listIndex);
+        return new Split<>(withListOrder(split.left), withListOrder(split.right));
+    }
+
+    /**
+     * result of splitting the linked list
+     *
+     * @param <T> type of the elements
+     */
+    public static class Split<T> {
+
+        public final PersistentLinkedList<T> left;
+        public final PersistentLinkedList<T> right;
+
+        Split(PersistentLinkedList<T> left, PersistentLinkedList<T> right) {
+            this.left = left;
+            this.right = right;
+        }
     }
 
     /**
-     * Removes the last element in the graph [time O(log(BF, N))]
+     * create new version of the structure with the same graph and given subsequence of its
+     * elements [time O(log(N))]
      *
+     * @param newListOrder graph indices of the remaining elements in the linked list order
      * @return new version of the structure
      */
-    private PersistentLinkedList<T> pop() {
-        //the latest element won't become empty
-        int index = this.treeSize - 1;
-        Node<T> newRoot = new Node<>(branchingFactor);
+    private PersistentLinkedList<T> withListOrder(IndexTree newListOrder) {
+        int newSize = IndexTree.size(newListOrder);
+        if (newSize == 0) {
+            return new PersistentLinkedList<>(new Node<>(branchingFactor), branchingFactor, 1, 1,
+                0, null, null);
+        }
+        return new PersistentLinkedList<>(root, branchingFactor, depth, base, treeSize,
+            unusedTreeIndices, newListOrder);
+    }
 
-        Node<T> currentNode = this.root;
-        Node<T> currentNewNode = newRoot;
+    /**
+     * finish bulk removal: create the new graph in one pass, turn removed elements into gaps and
+     * cut the gaps off the end of the graph
+     *
+     * @param edits empty leaves for the removed elements
+     * @param removedTreeIndices graph indices of the removed elements
+     * @param newListOrder graph indices of the remaining elements in the linked list order
+     * @return new version of the structure (not compacted)
+     */
+    private PersistentLinkedList<T> removeAllHelper(TreeMap<Integer, Node<T>> edits,
+        int[] removedTreeIndices, IndexTree newListOrder) {
+        IndexTree newUnusedTreeIndices = this.unusedTreeIndices;
+        for (int treeIndex : removedTreeIndices) {
+            newUnusedTreeIndices = IndexTree.addSorted(newUnusedTreeIndices, treeIndex);
+        }
+        int newTreeSize = this.treeSize;
+        while (newTreeSize > 0 && IndexTree.contains(newUnusedTreeIndices, newTreeSize - 1)) {
+            newTreeSize--;
+        }
+        newUnusedTreeIndices = IndexTree
+            .split(newUnusedTreeIndices, IndexTree.rank(newUnusedTreeIndices, newTreeSize)).left;
 
-        ArrayList<Node<T>> newNodes = new ArrayList<>();
-        newNodes.add(newRoot);
-        ArrayList<Integer> newNodesIndices = new ArrayList<>();
+        PersistentLinkedList<T> newVersion = editHelper(edits, newTreeSize);
+        newVersion.unusedTreeIndices = newUnusedTreeIndices;
+        newVersion.listOrder = newListOrder;
+        return newVersion;
+    }
 
-        for (int b = base; b > 1; b = b / branchingFactor) {
-            TraverseData traverseData = traverseOneLevel(
-                new TraverseData(currentNode, currentNewNode, newRoot, index, b));
-            currentNode = traverseData.currentNode;
-            currentNewNode = traverseData.currentNewNode;
-            newNodes.add(currentNewNode);
-            newNodesIndices.add(index / b);
-            index = traverseData.index;
+    /**
+     * replace several leaves at once copying every affected internal node only once [time O(K *
+     * log(BF, N))]
+     *
+     * @param edits new leaves by their graph indices
+     * @param newTreeSize number of leaves in the new graph, the subgraphs beyond it are cut off
+     * @return new version of the structure
+     */
+    private PersistentLinkedList<T> editHelper(TreeMap<Integer, Node<T>> edits, int newTreeSize) {
+        int[] treeIndices = new int[edits.size()];
+        ArrayList<Node<T>> leaves = new ArrayList<>(edits.size());
+        int i = 0;
+        for (Map.Entry<Integer, Node<T>> edit : edits.entrySet()) {
+            treeIndices[i++] = edit.getKey();
+            leaves.add(edit.getValue());
         }
-        newNodesIndices.add(index);
 
-        for (int i = 0; i < branchingFactor && i < index; i++) {
-            currentNewNode.set(i, currentNode.get(i));
+        Node<T> newRoot = this.root;
+        int newDepth = this.depth;
+        int newBase = this.base;
+        while (newBase * branchingFactor < newTreeSize) { //root overflow
+            Node<T> grownRoot = new Node<>(branchingFactor);
+            grownRoot.set(0, newRoot);
+            newRoot = grownRoot;
+            newBase *= branchingFactor;
+            newDepth++;
         }
-        currentNewNode.set(index, null);
 
-        if (index == 0) {
-            int latestIndex = newNodes.size() - 2;
-            newNodes.get(latestIndex).set(newNodesIndices.get(latestIndex), null);
+        newRoot = editHelper(newRoot, 0, newBase, treeIndices, leaves, 0, treeIndices.length,
+            newTreeSize);
 
-            for (int i = latestIndex; i > 0; i--) {
-                if (newNodesIndices.get(i) == 0) {
-                    newNodes.get(i - 1).set(newNodesIndices.get(i - 1), null);
-                } else {
-                    break;
-                }
-            }
+        while (newDepth > 1 && newTreeSize <= newBase) { //need new root
+            newRoot = newRoot.get(0) == null ? new Node<>(branchingFactor) : newRoot.get(0);
+            newBase /= branchingFactor;
+            newDepth--;
         }
+        return new PersistentLinkedList<>(newRoot, branchingFactor, newDepth, newBase, newTreeSize,
+            unusedTreeIndices, listOrder);
+    }
 
-        if (newNodes.size() > 1) {
-            int nonNullChildren = 0;
-            for (Node<T> child : newRoot.children) {
-                if (child != null) {
-                    nonNullChildren++;
-                }
+    /**
+     * recursive function copying the current subgraph with the edits [time O(K * log(BF, N))]
+     *
+     * @param node root node for the current subgraph (may be null)
+     * @param nodeStart graph index of the first leaf in the subgraph
+     * @param b base of the subgraph
+     * @param treeIndices sorted graph indices of the edited leaves
+     * @param leaves new leaves in the same order
+     * @param from first edit inside the current subgraph
+     * @param to edit after the last one inside the current subgraph
+     * @param newTreeSize number of leaves in the new graph
+     * @return new root for the current subgraph
+     */
+    private Node<T> editHelper(Node<T> node, int nodeStart, int b, int[] treeIndices,
+        List<Node<T>> leaves, int from, int to, int newTreeSize) {
+        Node<T> newNode = new Node<>(branchingFactor);
+        for (int i = 0; i < branchingFactor; i++) {
+            int childStart = nodeStart + i * b;
+            int childTo = from;
+            while (childTo < to && treeIndices[childTo] < childStart + b) {
+                childTo++;
             }
-            if (nonNullChildren == 1) { //need new root
-                newRoot = newRoot.get(0);
-                return new PersistentLinkedList<>(newRoot, this.branchingFactor, this.depth - 1,
-                    this.base / branchingFactor, this.treeSize - 1, unusedTreeIndices,
-                    indexCorrespondingToTheFirstElement, indexCorrespondingToTheLatestElement);
+
+            Node<T> child = node == null ? null : node.get(i);
+            if (childStart >= newTreeSize) {
+                child = null;
+            } else if (b == 1) {
+                if (childTo > from) {
+                    child = leaves.get(from);
+                }
+            } else if (childTo > from || (child != null && childStart + b > newTreeSize
+                && newTreeSize < this.treeSize)) {
+                child = editHelper(child, childStart, b / branchingFactor, treeIndices, leaves,
+                    from, childTo, newTreeSize);
             }
+            newNode.set(i, child);
+            from = childTo;
+        }
+        return newNode;
+    }
+
+    /**
+     * rebuild the graph so that the elements are stored in the linked list order without gaps
+     * [time O(N * log(BF, N))]
+     *
+     * @return new version of the structure
+     */
+    public PersistentLinkedList<T> compact() {
+        int size = this.size();
+        ArrayList<Node<T>> leaves = new ArrayList<>(size);
+        PathCache pathCache = new PathCache();
+        for (int i = 0; i < size; i++) {
+            leaves.add(new Node<>(branchingFactor, pathCache.getAt(i).data));
+        }
+
+        int newDepth = 1;
+        int newBase = 1;
+        while (newBase * branchingFactor < size) {
+            newBase *= branchingFactor;
+            newDepth++;
         }
-        return new PersistentLinkedList<>(newRoot, this.branchingFactor, this.depth, this.base,
-            this.treeSize - 1, unusedTreeIndices, indexCorrespondingToTheFirstElement,
-            indexCorrespondingToTheLatestElement);
+        Node<T> newRoot = Node.build(leaves, 0, newBase, branchingFactor);
+        return new PersistentLinkedList<>(newRoot, branchingFactor, newDepth, newBase, size, null,
+            IndexTree.run(0, size));
+    }
+
+    /**
+     * compact the graph if it has too many gaps or the linked list order drifted too far from the
+     * graph order. Only the own gaps and elements are counted: the indices of the other part after
+     * splitting are not gaps, and the list containing elements of concatenated lists is never
+     * compacted automatically, so the elements of other graphs are not copied by an O(log(N))
+     * operation [time O(1) or O(N * log(BF, N)) if the compaction is needed]
+     *
+     * @return this or compacted version of the structure
+     */
+    private PersistentLinkedList<T> compactIfNeeded() {
+        if (this.treeSize < COMPACTION_MIN_TREE_SIZE || IndexTree.boundSize(this.listOrder) > 0) {
+            return this;
+        }
+        int size = this.size();
+        int gaps = IndexTree.size(this.unusedTreeIndices);
+        int breaks = IndexTree.runs(this.listOrder) - 1;
+        if (gaps > COMPACTION_GAP_RATIO * (gaps + size)
+            || breaks > COMPACTION_DISORDER_RATIO * (size - 1)) {
+            return compact();
+        }
+        return this;
     }
 
     /**
      * convert the structure to PersistentArray (important: elements will be sorted in
-     * addition/insertion history order, not in the index order) sharing the same data
+     * addition/insertion history order, not in the index order, unless the structure is compacted)
+     * sharing the same data. The structure sharing its graph with other lists (the elements of
+     * concatenated lists or the other part after splitting) is compacted first
      *
      * @return PersistentArray
      */
     public PersistentArray<T> toPersistentArray() {
-        return new PersistentArray<>(this.root, this.branchingFactor, this.depth, this.base,
-            this.treeSize);
+        int usedTreeIndices = this.treeSize - IndexTree.size(this.unusedTreeIndices);
+        if (usedTreeIndices != this.size() - IndexTree.boundSize(this.listOrder)) {
+            return compact().graph();
+        }
+        return graph();
     }
 
 
     /**
-     * convert PersistentLinkedList to LinkedList [time O(N * log(BF, N))]
+     * convert the structure to PersistentDeque [time O(N * log(BF, N))]
+     *
+     * @return PersistentDeque
+     */
+    public PersistentDeque<T> toPersistentDeque() {
+        return new PersistentDeque<>(toLinkedList());
+    }
+
+    /**
+     * convert PersistentLinkedList to LinkedList [time O(N) for the compacted graph, O(N * log(BF,
+     * N)) in the worst case]
      *
      * @return LinkedList presentation
      */
     public LinkedList<T> toLinkedList() {
         LinkedList<T> out = new LinkedList<>();
-        int currentTreeIndex = this.indexCorrespondingToTheFirstElement;
-        while (currentTreeIndex != -1) {
-            Node<T> currentNode = getHelper(currentTreeIndex);
-            out.add(currentNode.data);
-            currentTreeIndex = currentNode.nextIndex;
+        ListIterator<T> it = iterator();
+        while (it.hasNext()) {
+            out.add(it.next());
         }
         return out;
     }
@@ -646,44 +745,98 @@ public class PersistentLinkedList<T> {
      * @return amount of the elements in the linked list
      */
     public int size() {
-        return this.treeSize - this.unusedTreeIndices.size();
+        return IndexTree.size(this.listOrder);
     }
 
     public ListIterator<T> iterator() { return new DoublyLinkedListIterator(); }
 
+    /**
+     * @return Spliterator walking through the linked list and splitting it by the list indices
+     */
+    public Spliterator<T> spliterator() {
+        return new LinkedListSpliterator(0, size());
+    }
+
+    /**
+     * @return sequential Stream of the linked list elements
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return possibly parallel Stream of the linked list elements
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    private class LinkedListSpliterator implements Spliterator<T> {
+        private final PathCache pathCache = new PathCache();
+        private int listNextIndex;
+        private final int listEndIndex;
+
+        LinkedListSpliterator(int listNextIndex, int listEndIndex) {
+            this.listNextIndex = listNextIndex;
+            this.listEndIndex = listEndIndex;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (listNextIndex >= listEndIndex) {
+                return false;
+            }
+            action.accept(pathCache.getAt(listNextIndex++).data);
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (listEndIndex - listNextIndex < 2) {
+                return null;
+            }
+            int middle = (listNextIndex + listEndIndex) >>> 1;
+            Spliterator<T> prefix = new LinkedListSpliterator(listNextIndex, middle);
+            listNextIndex = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return listEndIndex - listNextIndex;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+        }
+    }
+
     private class DoublyLinkedListIterator implements ListIterator<T> {
-        private int treeNextIndex = indexCorrespondingToTheFirstElement;
-        private int treePreviousIndex = -1;
+        private final PathCache pathCache = new PathCache();
+        private final int size = size();
         private int listNextIndex = 0;
 
         @Override
         public boolean hasNext() {
-            return treeNextIndex != -1;
+            return listNextIndex < size;
         }
 
         @Override
         public T next() {
             if (!hasNext()) throw new NoSuchElementException();
-            Node<T> nextNode = getHelper(treeNextIndex);
-            treePreviousIndex = treeNextIndex;
-            treeNextIndex = nextNode.nextIndex;
-            listNextIndex++;
-            return nextNode.data;
+            return pathCache.getAt(listNextIndex++).data;
         }
 
         @Override
         public boolean hasPrevious() {
-            return treePreviousIndex != -1;
+            return listNextIndex > 0;
         }
 
         @Override
         public T previous() {
             if (!hasPrevious()) throw new NoSuchElementException();
-            Node<T> previousNode = getHelper(treePreviousIndex);
-            treeNextIndex = treePreviousIndex;
-            treePreviousIndex = previousNode.previousIndex;
-            listNextIndex--;
-            return previousNode.data;
+            return pathCache.getAt(--listNextIndex).data;
         }
 
         @Override
@@ -713,6 +866,185 @@ public class PersistentLinkedList<T> {
     }
 
 
+    /**
+     * create a cursor pointing at the ith element of the linked list [time O(log(N) + log(BF,
+     * N))]
+     *
+     * @param listIndex index of the element in the linked list
+     * @return cursor over this version of the structure
+     */
+    public Cursor<T> cursor(int listIndex) {
+        return new Cursor<>(this, listIndex);
+    }
+
+    /**
+     * persistent cursor pointing at an element of one version of the linked list. It remembers
+     * the run of consecutive graph indices containing the element together with the lowest
+     * internal node on the path to it, so moving inside one run doesn't search the order tree and
+     * moving inside one leaf block doesn't descend from the root. Edits return cursors over new
+     * versions of the structure: the run of the cursor in the new version is derived from the
+     * cached one, so neither the edit nor the new cursor searches the order tree by position
+     * for the cursor itself (the persistent order tree still copies its path).
+     *
+     * @param <T> type of the elements
+     */
+    public static class Cursor<T> {
+
+        private final PersistentLinkedList<T> list;
+        private final int listIndex;
+        private final IndexTree.Run run;
+        private final int treeIndex;
+        private final Node<T> leafParent;
+        private final Node<T> node;
+
+        private Cursor(PersistentLinkedList<T> list, int listIndex) {
+            this(list, listIndex, IndexTree.runAt(list.listOrder, listIndex), null);
+        }
+
+        private Cursor(PersistentLinkedList<T> list, int listIndex, IndexTree.Run run,
+            Node<T> leafParent) {
+            this.list = list;
+            this.listIndex = listIndex;
+            this.run = run;
+            this.treeIndex = run.start + listIndex - run.position;
+            this.leafParent = leafParent == null ? list.getLeafParent(run, treeIndex) : leafParent;
+            this.node = this.leafParent.get(treeIndex % list.branchingFactor);
+        }
+
+        /**
+         * move to the neighbouring element reusing the run and the leaf block if possible [time
+         * O(1) inside the leaf block, O(log(N) + log(BF, N)) otherwise]
+         */
+        private Cursor<T> moveTo(int newListIndex) {
+            if (newListIndex < run.position || newListIndex >= run.position + run.length) {
+                return new Cursor<>(list, newListIndex);
+            }
+            int newTreeIndex = run.start + newListIndex - run.position;
+            if (newTreeIndex / list.branchingFactor == treeIndex / list.branchingFactor) {
+                return new Cursor<>(list, newListIndex, run, leafParent);
+            }
+            return new Cursor<>(list, newListIndex, run, null);
+        }
+
+        /**
+         * @return the element the cursor is pointing at
+         */
+        public T get() {
+            return node.data;
+        }
+
+        /**
+         * @return index of the element in the linked list
+         */
+        public int index() {
+            return listIndex;
+        }
+
+        /**
+         * @return version of the linked list the cursor belongs to
+         */
+        public PersistentLinkedList<T> list() {
+            return list;
+        }
+
+        public boolean hasNext() {
+            return listIndex + 1 < list.size();
+        }
+
+        public boolean hasPrevious() {
+            return listIndex > 0;
+        }
+
+        /**
+         * @return cursor pointing at the following element
+         */
+        public Cursor<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return moveTo(listIndex + 1);
+        }
+
+        /**
+         * @return cursor pointing at the preceding element
+         */
+        public Cursor<T> prev() {
+            if (!hasPrevious()) {
+                throw new NoSuchElementException();
+            }
+            return moveTo(listIndex - 1);
+        }
+
+        /**
+         * create a cursor over a new version, compacting it if needed
+         *
+         * @param newVersion new version of the structure (not compacted)
+         * @param listIndex index of the element in the linked list
+         * @param run run of the new version containing the element or null if it is unknown
+         * @return cursor over the new version
+         */
+        private static <T> Cursor<T> at(PersistentLinkedList<T> newVersion, int listIndex,
+            IndexTree.Run run) {
+            PersistentLinkedList<T> compacted = newVersion.compactIfNeeded();
+            if (compacted != newVersion || run == null) { //the runs have changed
+                return new Cursor<>(compacted, listIndex);
+            }
+            return new Cursor<>(newVersion, listIndex, run, null);
+        }
+
+        /**
+         * insert given element before the current one [time O(log(N) + log(BF, N))]
+         *
+         * @param data element to be inserted
+         * @return cursor pointing at the inserted element in the new version
+         */
+        public Cursor<T> insertBefore(T data) {
+            return insertAt(listIndex, data);
+        }
+
+        /**
+         * insert given element after the current one [time O(log(N) + log(BF, N))]
+         *
+         * @param data element to be inserted
+         * @return cursor pointing at the inserted element in the new version
+         */
+        public Cursor<T> insertAfter(T data) {
+            return insertAt(listIndex + 1, data);
+        }
+
+        /**
+         * the inserted element forms the run of its own in the new version
+         */
+        private Cursor<T> insertAt(int newListIndex, T data) {
+            int newTreeIndex = list.freeTreeIndex();
+            return at(list.insertHelper(newListIndex, data, newTreeIndex), newListIndex,
+                new IndexTree.Run(newListIndex, newTreeIndex, 1, null));
+        }
+
+        /**
+         * remove the current element, the cached run gives both the removed element and the run
+         * of the new current one [time O(log(N) + log(BF, N))]
+         *
+         * @return cursor pointing at the following element (or at the preceding one if the last
+         * element was removed) in the new version; null if the new version is empty
+         */
+        public Cursor<T> remove() {
+            PersistentLinkedList<T> newVersion = list.removeHelper(listIndex, run);
+            int runEnd = run.position + run.length;
+            if (hasNext()) { //the rest of the run follows the removed element
+                return at(newVersion, listIndex, listIndex + 1 < runEnd
+                    ? new IndexTree.Run(listIndex, treeIndex + 1, runEnd - listIndex - 1, run.graph)
+                    : null);
+            }
+            if (hasPrevious()) { //the beginning of the run precedes the removed element
+                return at(newVersion, listIndex - 1, listIndex > run.position
+                    ? new IndexTree.Run(run.position, run.start, listIndex - run.position,
+                    run.graph) : null);
+            }
+            return null;
+        }
+    }
+
     /**
      * recursive function returning the string representation of the current subgraph [time O(N *
      * log(BF * N))]
@@ -768,13 +1100,9 @@ public class PersistentLinkedList<T> {
     @Override
     public String toString() {
         StringBuilder outString = new StringBuilder();
-        int currentTreeIndex = this.indexCorrespondingToTheFirstElement;
-        if (treeSize > 0) {
-            while (currentTreeIndex != -1) {
-                Node<T> currentNode = getHelper(currentTreeIndex);
-                outString.append(currentNode.data).append(", ");
-                currentTreeIndex = currentNode.nextIndex;
-            }
+        ListIterator<T> it = iterator();
+        while (it.hasNext()) {
+            outString.append(it.next()).append(", ");
         }
 
         if (outString.length() != 0) {
@@ -1,6 +1,7 @@
 package persistent;
 
-import java.util.SortedSet;
+import java.util.Collection;
+import java.util.function.Predicate;
 
 public class PersistentLinkedListHistory<T> extends PersistentLinkedList<T> {
 
@@ -15,18 +16,16 @@ public class PersistentLinkedListHistory<T> extends PersistentLinkedList<T> {
 
     private PersistentLinkedListHistory(Node<T> root, int branchingFactor, int depth, int base,
         int treeSize,
-        SortedSet<Integer> unusedTreeIndices, int indexCorrespondingToTheFirstElement,
-        int indexCorrespondingToTheLatestElement, PersistentLinkedListHistory<T> latestVersion) {
-        super(root, branchingFactor, depth, base, treeSize, unusedTreeIndices,
-            indexCorrespondingToTheFirstElement, indexCorrespondingToTheLatestElement);
+        IndexTree unusedTreeIndices, IndexTree listOrder,
+        PersistentLinkedListHistory<T> latestVersion) {
+        super(root, branchingFactor, depth, base, treeSize, unusedTreeIndices, listOrder);
         this.latestVersion = latestVersion;
     }
 
     private PersistentLinkedListHistory(PersistentLinkedListHistory<T> thisVersion,
         PersistentLinkedListHistory<T> futureVersion) {
         super(thisVersion.root, thisVersion.branchingFactor, thisVersion.depth, thisVersion.base,
-            thisVersion.treeSize, thisVersion.unusedTreeIndices, thisVersion.indexCorrespondingToTheFirstElement,
-            thisVersion.indexCorrespondingToTheLatestElement);
+            thisVersion.treeSize, thisVersion.unusedTreeIndices, thisVersion.listOrder);
         this.latestVersion = thisVersion.latestVersion;
         this.futureVersion = futureVersion;
     }
@@ -50,63 +49,81 @@ public class PersistentLinkedListHistory<T> extends PersistentLinkedList<T> {
         return futureVersion;
     }
 
+    /**
+     * @param result version of the structure produced from this one
+     * @return the same version remembering this one as the previous, this if nothing changed
+     */
+    private PersistentLinkedListHistory<T> nextVersion(PersistentLinkedList<T> result) {
+        if (result == this) {
+            return this;
+        }
+        return new PersistentLinkedListHistory<>(result.root, result.branchingFactor,
+            result.depth, result.base, result.treeSize, result.unusedTreeIndices,
+            result.listOrder, this);
+    }
+
     @Override
     public PersistentLinkedListHistory<T> add(int listIndex, T data) {
-        PersistentLinkedList<T> result = super.add(listIndex, data);
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.add(listIndex, data));
     }
 
     @Override
     public PersistentLinkedListHistory<T> addFirst(T data) {
-        PersistentLinkedList<T> result = super.addFirst(data);
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.addFirst(data));
     }
 
     @Override
     public PersistentLinkedListHistory<T> addLast(T data) {
-        PersistentLinkedList<T> result = super.addLast(data);
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.addLast(data));
     }
 
     @Override
     public PersistentLinkedListHistory<T> remove(int listIndex) {
-        PersistentLinkedList<T> result = super.remove(listIndex);
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.remove(listIndex));
     }
 
     @Override
     public PersistentLinkedListHistory<T> removeFirst() {
-        PersistentLinkedList<T> result = super.removeFirst();
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.removeFirst());
     }
 
     @Override
     public PersistentLinkedListHistory<T> removeLast() {
-        PersistentLinkedList<T> result = super.removeLast();
-        return new PersistentLinkedListHistory<>(result.root,
-            result.branchingFactor, result.depth, result.base, result.treeSize,
-            result.unusedTreeIndices,
-            result.indexCorrespondingToTheFirstElement, result.indexCorrespondingToTheLatestElement,
-            this);
+        return nextVersion(super.removeLast());
+    }
+
+    @Override
+    public PersistentLinkedListHistory<T> addAll(int listIndex, Collection<? extends T> data) {
+        return nextVersion(super.addAll(listIndex, data));
+    }
+
+    @Override
+    public PersistentLinkedListHistory<T> removeRange(int fromIndex, int toIndex) {
+        return nextVersion(super.removeRange(fromIndex, toIndex));
+    }
+
+    @Override
+    public PersistentLinkedListHistory<T> removeIf(Predicate<? super T> filter) {
+        return nextVersion(super.removeIf(filter));
+    }
+
+    @Override
+    public PersistentLinkedListHistory<T> compact() {
+        return nextVersion(super.compact());
+    }
+
+    @Override
+    public PersistentLinkedListHistory<T> concat(PersistentLinkedList<T> other) {
+        return nextVersion(super.concat(other));
+    }
+
+    /**
+     * split the linked list, both parts are PersistentLinkedListHistory with this version as the
+     * previous one
+     */
+    @Override
+    public Split<T> splitAt(int listIndex) {
+        Split<T> split = super.splitAt(listIndex);
+        return new Split<>(nextVersion(split.left), nextVersion(split.right));
     }
 }
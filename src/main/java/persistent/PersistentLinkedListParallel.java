@@ -5,7 +5,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 public class PersistentLinkedListParallel<T> {
-    private AtomicReference<PersistentLinkedList<T>> state = new AtomicReference<>();
+    private final AtomicReference<PersistentLinkedList<T>> state = new AtomicReference<>();
 
     public PersistentLinkedListParallel(int powerOfBranchingFactor) {
         PersistentLinkedList<T> init = new PersistentLinkedList<T>(powerOfBranchingFactor);
@@ -13,40 +13,15 @@ public class PersistentLinkedListParallel<T> {
     }
 
     public T getFirst() {
-        PersistentLinkedList<T> curVersion;
-        T value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.getFirst();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().getFirst();
     }
 
     public T getLast() {
-        PersistentLinkedList<T> curVersion;
-        T value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.getLast();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
-
+        return state.get().getLast();
     }
 
     public T get(int listIndex) {
-        PersistentLinkedList<T> curVersion;
-        T value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.get(listIndex);
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().get(listIndex);
     }
 
     public void add(int listIndex, T data) {
@@ -119,64 +94,33 @@ public class PersistentLinkedListParallel<T> {
         } while (!success);
     }
 
+    /**
+     * The reads of the snapshot need no synchronization and see one consistent version
+     *
+     * @return immutable current version of the list
+     */
+    public PersistentLinkedList<T> snapshot() {
+        return state.get();
+    }
+
     public PersistentArray<T> toPersistentArray() {
-        PersistentLinkedList<T> curVersion;
-        PersistentArray<T> value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.toPersistentArray();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().toPersistentArray();
     }
 
     public LinkedList<T> toLinkedList() {
-        PersistentLinkedList<T> curVersion;
-        LinkedList<T> value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.toLinkedList();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().toLinkedList();
     }
 
     public int size() {
-        PersistentLinkedList<T> curVersion;
-        int value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.size();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().size();
     }
 
     public String innerRepresentation() {
-        PersistentLinkedList<T> curVersion;
-        String value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.innerRepresentation();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().innerRepresentation();
     }
 
     public String toString() {
-        PersistentLinkedList<T> curVersion;
-        String value;
-        boolean success;
-        do {
-            curVersion = state.get();
-            value = curVersion.toString();
-            success = state.compareAndSet(curVersion, curVersion);
-        } while (!success);
-        return value;
+        return state.get().toString();
     }
 
     public void getLastAndAddLast(Function<T, T> function) {
@@ -0,0 +1,385 @@
+package persistent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * persistent map with the primitive long keys stored as a big-endian Patricia trie. Every branch
+ * tests the highest bit telling its two subtrees apart, so the keys are never boxed, hashed or
+ * compared by equals, the trie is at most 64 levels deep and the same set of keys always has the
+ * same shape. The keys are stored with the flipped sign bit, so the trie order is the signed
+ * order of the keys and the ranges are iterated in the ascending order.
+ *
+ * @param <V> type of the values
+ */
+public class PersistentLongMap<V> {
+
+    private final Vertex<V> root; //null for the empty map
+
+    /**
+     * leaf (mask is 0) or branch of the Patricia trie
+     */
+    private static class Vertex<V> {
+
+        final long prefix; //flipped key of the leaf, common high bits of the keys of the branch
+        final long mask; //the highest bit telling the subtrees apart, 0 for the leaf
+        final Vertex<V> left; //keys with 0 at the mask bit
+        final Vertex<V> right; //keys with 1 at the mask bit
+        final V value;
+        final int size; //amount of the keys in the whole subtree
+
+        Vertex(long prefix, V value) {
+            this.prefix = prefix;
+            this.mask = 0;
+            this.left = null;
+            this.right = null;
+            this.value = value;
+            this.size = 1;
+        }
+
+        Vertex(long prefix, long mask, Vertex<V> left, Vertex<V> right) {
+            this.prefix = prefix;
+            this.mask = mask;
+            this.left = left;
+            this.right = right;
+            this.value = null;
+            this.size = left.size + right.size;
+        }
+
+        boolean isLeaf() {
+            return mask == 0;
+        }
+
+        /**
+         * @return upper bound of the flipped keys of the subtree
+         */
+        long last() {
+            return isLeaf() ? prefix : prefix | mask | (mask - 1);
+        }
+    }
+
+    /**
+     * action for the entries without boxing the keys
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        void accept(long key, V value);
+    }
+
+    private PersistentLongMap(Vertex<V> root) {
+        this.root = root;
+    }
+
+    /**
+     * constructor for the empty persistent long map
+     */
+    public PersistentLongMap() {
+        this(null);
+    }
+
+    private PersistentLongMap<V> withRoot(Vertex<V> newRoot) {
+        return newRoot == this.root ? this : new PersistentLongMap<>(newRoot);
+    }
+
+    /**
+     * @return the key with the flipped sign bit, the unsigned order of the flipped keys is the
+     * signed order of the keys
+     */
+    private static long flip(long key) {
+        return key ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the bits of the flipped key above the mask bit
+     */
+    private static long prefixOf(long flipped, long mask) {
+        return flipped & -(mask << 1);
+    }
+
+    /**
+     * @return branch with both subtrees whose prefixes differ
+     */
+    private static <V> Vertex<V> join(long prefix1, Vertex<V> vertex1, long prefix2,
+        Vertex<V> vertex2) {
+        long mask = Long.highestOneBit(prefix1 ^ prefix2);
+        if ((prefix1 & mask) == 0) {
+            return new Vertex<>(prefixOf(prefix1, mask), mask, vertex1, vertex2);
+        }
+        return new Vertex<>(prefixOf(prefix1, mask), mask, vertex2, vertex1);
+    }
+
+    /**
+     * Returns the value for the specified key [time O(min(N, 64))]
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public V get(long key) {
+        Vertex<V> vertex = find(flip(key));
+        return vertex == null ? null : vertex.value;
+    }
+
+    public boolean containsKey(long key) {
+        return find(flip(key)) != null;
+    }
+
+    /**
+     * @param flipped flipped key
+     * @return the leaf with the key or null
+     */
+    private Vertex<V> find(long flipped) {
+        Vertex<V> vertex = this.root;
+        while (vertex != null && !vertex.isLeaf()) {
+            if (prefixOf(flipped, vertex.mask) != vertex.prefix) {
+                return null;
+            }
+
+            //down
+            vertex = (flipped & vertex.mask) == 0 ? vertex.left : vertex.right;
+        }
+        return vertex != null && vertex.prefix == flipped ? vertex : null;
+    }
+
+    /**
+     * Puts the value for the key replacing the old one [time O(min(N, 64))]
+     *
+     * @param key the key
+     * @param value the value
+     * @return new version of the map (this if the same value is already stored)
+     */
+    public PersistentLongMap<V> put(long key, V value) {
+        long flipped = flip(key);
+        if (this.root == null) {
+            return new PersistentLongMap<>(new Vertex<>(flipped, value));
+        }
+        return withRoot(putHelper(this.root, flipped, value));
+    }
+
+    private Vertex<V> putHelper(Vertex<V> vertex, long flipped, V value) {
+        if (vertex.isLeaf()) {
+            if (vertex.prefix == flipped) {
+                return vertex.value == value ? vertex : new Vertex<>(flipped, value);
+            }
+            return join(flipped, new Vertex<>(flipped, value), vertex.prefix, vertex);
+        }
+        if (prefixOf(flipped, vertex.mask) != vertex.prefix) {
+            return join(flipped, new Vertex<>(flipped, value), vertex.prefix, vertex);
+        }
+        if ((flipped & vertex.mask) == 0) {
+            Vertex<V> newLeft = putHelper(vertex.left, flipped, value);
+            return newLeft == vertex.left ? vertex
+                : new Vertex<>(vertex.prefix, vertex.mask, newLeft, vertex.right);
+        }
+        Vertex<V> newRight = putHelper(vertex.right, flipped, value);
+        return newRight == vertex.right ? vertex
+            : new Vertex<>(vertex.prefix, vertex.mask, vertex.left, newRight);
+    }
+
+    /**
+     * Removes the entry for the key [time O(min(N, 64))]
+     *
+     * @param key the key
+     * @return new version of the map (this if there is no such key)
+     */
+    public PersistentLongMap<V> remove(long key) {
+        if (this.root == null) {
+            return this;
+        }
+        return withRoot(removeHelper(this.root, flip(key)));
+    }
+
+    private Vertex<V> removeHelper(Vertex<V> vertex, long flipped) {
+        if (vertex.isLeaf()) {
+            return vertex.prefix == flipped ? null : vertex;
+        }
+        if (prefixOf(flipped, vertex.mask) != vertex.prefix) {
+            return vertex;
+        }
+        if ((flipped & vertex.mask) == 0) {
+            Vertex<V> newLeft = removeHelper(vertex.left, flipped);
+            if (newLeft == null) {
+                return vertex.right;
+            }
+            return newLeft == vertex.left ? vertex
+                : new Vertex<>(vertex.prefix, vertex.mask, newLeft, vertex.right);
+        }
+        Vertex<V> newRight = removeHelper(vertex.right, flipped);
+        if (newRight == null) {
+            return vertex.left;
+        }
+        return newRight == vertex.right ? vertex
+            : new Vertex<>(vertex.prefix, vertex.mask, vertex.left, newRight);
+    }
+
+    /**
+     * @return amount of the entries [time O(1)]
+     */
+    public int size() {
+        return this.root == null ? 0 : this.root.size;
+    }
+
+    public boolean isEmpty() {
+        return this.root == null;
+    }
+
+    /**
+     * @return the smallest key [time O(min(N, 64))]
+     */
+    public long firstKey() {
+        if (this.root == null) {
+            throw new NoSuchElementException();
+        }
+        Vertex<V> vertex = this.root;
+        while (!vertex.isLeaf()) {
+            vertex = vertex.left;
+        }
+        return flip(vertex.prefix);
+    }
+
+    /**
+     * @return the greatest key [time O(min(N, 64))]
+     */
+    public long lastKey() {
+        if (this.root == null) {
+            throw new NoSuchElementException();
+        }
+        Vertex<V> vertex = this.root;
+        while (!vertex.isLeaf()) {
+            vertex = vertex.right;
+        }
+        return flip(vertex.prefix);
+    }
+
+    /**
+     * Performs the action for every entry in the ascending order of the keys [time O(N)]
+     */
+    public void forEach(EntryConsumer<? super V> action) {
+        forEach(new KeyIterator(0, -1, true), action);
+    }
+
+    /**
+     * Performs the action for the entries with the keys from fromKey inclusive to toKey
+     * exclusive in the ascending order of the keys [time O(min(N, 64) + K)]
+     */
+    public void forEachInRange(long fromKey, long toKey, EntryConsumer<? super V> action) {
+        forEach(new KeyIterator(flip(fromKey), flip(toKey), false), action);
+    }
+
+    private void forEach(KeyIterator it, EntryConsumer<? super V> action) {
+        while (it.hasNext()) {
+            Vertex<V> leaf = it.nextLeaf();
+            action.accept(flip(leaf.prefix), leaf.value);
+        }
+    }
+
+    /**
+     * @return iterator over all keys in the ascending order
+     */
+    public PrimitiveIterator.OfLong keyIterator() {
+        return new KeyIterator(0, -1, true);
+    }
+
+    /**
+     * @return iterator over the values in the ascending order of their keys
+     */
+    public Iterator<V> valueIterator() {
+        return new Iterator<V>() {
+            private final KeyIterator keys = new KeyIterator(0, -1, true);
+
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return keys.nextLeaf().value;
+            }
+        };
+    }
+
+    /**
+     * @return iterator over the keys from fromKey inclusive to toKey exclusive in the ascending
+     * order [time O(1) amortized per key]
+     */
+    public PrimitiveIterator.OfLong keyIterator(long fromKey, long toKey) {
+        return new KeyIterator(flip(fromKey), flip(toKey), false);
+    }
+
+    /**
+     * walks the leaves of the range, the subtrees outside the range are not visited
+     */
+    private class KeyIterator implements PrimitiveIterator.OfLong {
+
+        private final ArrayDeque<Vertex<V>> path = new ArrayDeque<>();
+        private final long from; //flipped bounds
+        private final long to;
+        private final boolean inclusive; //true if the upper bound is included
+
+        KeyIterator(long from, long to, boolean inclusive) {
+            this.from = from;
+            this.to = to;
+            this.inclusive = inclusive;
+            if (root != null) {
+                path.push(root);
+                advance();
+            }
+        }
+
+        private boolean beforeEnd(long flipped) {
+            int cmp = Long.compareUnsigned(flipped, to);
+            return inclusive ? cmp <= 0 : cmp < 0;
+        }
+
+        /**
+         * pop the subtrees outside the range and split the branches until the leaf is on the top
+         */
+        private void advance() {
+            while (!path.isEmpty()) {
+                Vertex<V> vertex = path.peek();
+                if (Long.compareUnsigned(vertex.last(), from) < 0
+                    || !beforeEnd(vertex.prefix)) {
+                    path.pop();
+                } else if (vertex.isLeaf()) {
+                    return;
+                } else {
+                    path.pop();
+                    path.push(vertex.right);
+                    path.push(vertex.left);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        Vertex<V> nextLeaf() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Vertex<V> leaf = path.pop();
+            advance();
+            return leaf;
+        }
+
+        @Override
+        public long nextLong() {
+            return flip(nextLeaf().prefix);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder outString = new StringBuilder();
+        forEach((key, value) -> {
+            if (outString.length() != 0) {
+                outString.append(", ");
+            }
+            outString.append(key).append('=').append(value);
+        });
+        return "{" + outString + "}";
+    }
+}
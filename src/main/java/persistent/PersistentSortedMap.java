@@ -0,0 +1,512 @@
+package persistent;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * persistent sorted map stored as an AVL tree annotated with subtree sizes. Updates copy the path
+ * to the changed vertex, the ranges (subMap, headMap, tailMap) are cut by splitting the tree, so
+ * they take O(log(N)) time and share the vertices with the original map.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class PersistentSortedMap<K, V> {
+
+    private final Vertex<K, V> root;
+    private final Comparator<? super K> comparator;
+
+    /**
+     * vertex of the AVL tree
+     */
+    private static class Vertex<K, V> {
+
+        final Vertex<K, V> left;
+        final K key;
+        final V value;
+        final Vertex<K, V> right;
+        final int size; //amount of the keys in the whole subtree
+        final int height;
+
+        Vertex(Vertex<K, V> left, K key, V value, Vertex<K, V> right) {
+            this.left = left;
+            this.key = key;
+            this.value = value;
+            this.right = right;
+            this.size = size(left) + 1 + size(right);
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    /**
+     * result of splitting the tree by the key
+     */
+    private static class Split<K, V> {
+
+        final Vertex<K, V> left; //smaller keys
+        final Vertex<K, V> found; //vertex with the key or null
+        final Vertex<K, V> right; //greater keys
+
+        Split(Vertex<K, V> left, Vertex<K, V> found, Vertex<K, V> right) {
+            this.left = left;
+            this.found = found;
+            this.right = right;
+        }
+    }
+
+    private PersistentSortedMap(Vertex<K, V> root, Comparator<? super K> comparator) {
+        this.root = root;
+        this.comparator = comparator;
+    }
+
+    /**
+     * constructor for the empty persistent sorted map with the given order of the keys
+     *
+     * @param comparator comparator defining the order of the keys
+     */
+    public PersistentSortedMap(Comparator<? super K> comparator) {
+        this(null, comparator);
+    }
+
+    /**
+     * constructor for the empty persistent sorted map with the natural order of the keys
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentSortedMap() {
+        this(null, (Comparator<? super K>) Comparator.naturalOrder());
+    }
+
+    private static int size(Vertex<?, ?> vertex) {
+        return vertex == null ? 0 : vertex.size;
+    }
+
+    private static int height(Vertex<?, ?> vertex) {
+        return vertex == null ? 0 : vertex.height;
+    }
+
+    private PersistentSortedMap<K, V> withRoot(Vertex<K, V> newRoot) {
+        return newRoot == this.root ? this : new PersistentSortedMap<>(newRoot, this.comparator);
+    }
+
+    private static <K, V> Vertex<K, V> rotateLeft(Vertex<K, V> vertex) {
+        Vertex<K, V> r = vertex.right;
+        return new Vertex<>(new Vertex<>(vertex.left, vertex.key, vertex.value, r.left), r.key,
+            r.value, r.right);
+    }
+
+    private static <K, V> Vertex<K, V> rotateRight(Vertex<K, V> vertex) {
+        Vertex<K, V> l = vertex.left;
+        return new Vertex<>(l.left, l.key, l.value,
+            new Vertex<>(l.right, vertex.key, vertex.value, vertex.right));
+    }
+
+    /**
+     * join two trees with the entry between them when the left one is taller
+     */
+    private static <K, V> Vertex<K, V> joinRight(Vertex<K, V> left, K key, V value,
+        Vertex<K, V> right) {
+        if (height(left.right) <= height(right) + 1) {
+            Vertex<K, V> middle = new Vertex<>(left.right, key, value, right);
+            if (middle.height <= height(left.left) + 1) {
+                return new Vertex<>(left.left, left.key, left.value, middle);
+            }
+            return rotateLeft(new Vertex<>(left.left, left.key, left.value, rotateRight(middle)));
+        }
+        Vertex<K, V> middle = joinRight(left.right, key, value, right);
+        Vertex<K, V> out = new Vertex<>(left.left, left.key, left.value, middle);
+        if (middle.height <= height(left.left) + 1) {
+            return out;
+        }
+        return rotateLeft(out);
+    }
+
+    /**
+     * join two trees with the entry between them when the right one is taller
+     */
+    private static <K, V> Vertex<K, V> joinLeft(Vertex<K, V> left, K key, V value,
+        Vertex<K, V> right) {
+        if (height(right.left) <= height(left) + 1) {
+            Vertex<K, V> middle = new Vertex<>(left, key, value, right.left);
+            if (middle.height <= height(right.right) + 1) {
+                return new Vertex<>(middle, right.key, right.value, right.right);
+            }
+            return rotateRight(new Vertex<>(rotateLeft(middle), right.key, right.value,
+                right.right));
+        }
+        Vertex<K, V> middle = joinLeft(left, key, value, right.left);
+        Vertex<K, V> out = new Vertex<>(middle, right.key, right.value, right.right);
+        if (middle.height <= height(right.right) + 1) {
+            return out;
+        }
+        return rotateRight(out);
+    }
+
+    /**
+     * join two trees placing the given entry between them, all keys of the left tree are smaller
+     * and all keys of the right one are greater than the key [time O(|height(left) -
+     * height(right)|)]
+     *
+     * @return new balanced tree
+     */
+    private static <K, V> Vertex<K, V> join(Vertex<K, V> left, K key, V value,
+        Vertex<K, V> right) {
+        if (height(left) > height(right) + 1) {
+            return joinRight(left, key, value, right);
+        }
+        if (height(right) > height(left) + 1) {
+            return joinLeft(left, key, value, right);
+        }
+        return new Vertex<>(left, key, value, right);
+    }
+
+    /**
+     * join two trees, all keys of the left tree are smaller than the keys of the right one [time
+     * O(log(N))]
+     *
+     * @return new balanced tree
+     */
+    private static <K, V> Vertex<K, V> join(Vertex<K, V> left, Vertex<K, V> right) {
+        if (right == null) {
+            return left;
+        }
+        Vertex<K, V> first = right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return join(left, first.key, first.value, removeFirst(right));
+    }
+
+    private static <K, V> Vertex<K, V> removeFirst(Vertex<K, V> vertex) {
+        if (vertex.left == null) {
+            return vertex.right;
+        }
+        return join(removeFirst(vertex.left), vertex.key, vertex.value, vertex.right);
+    }
+
+    /**
+     * split the tree by the key [time O(log(N))]
+     *
+     * @param vertex the tree
+     * @param key the key
+     * @return trees with smaller and greater keys and the vertex with the key
+     */
+    private Split<K, V> split(Vertex<K, V> vertex, K key) {
+        if (vertex == null) {
+            return new Split<>(null, null, null);
+        }
+        int cmp = comparator.compare(key, vertex.key);
+        if (cmp < 0) {
+            Split<K, V> split = split(vertex.left, key);
+            return new Split<>(split.left, split.found,
+                join(split.right, vertex.key, vertex.value, vertex.right));
+        }
+        if (cmp > 0) {
+            Split<K, V> split = split(vertex.right, key);
+            return new Split<>(join(vertex.left, vertex.key, vertex.value, split.left),
+                split.found, split.right);
+        }
+        return new Split<>(vertex.left, vertex, vertex.right);
+    }
+
+    private Vertex<K, V> find(K key) {
+        Vertex<K, V> vertex = this.root;
+        while (vertex != null) {
+            int cmp = comparator.compare(key, vertex.key);
+            if (cmp == 0) {
+                return vertex;
+            }
+            vertex = cmp < 0 ? vertex.left : vertex.right;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value for the specified key [time O(log(N))]
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public V get(K key) {
+        Vertex<K, V> vertex = find(key);
+        return vertex == null ? null : vertex.value;
+    }
+
+    public boolean containsKey(K key) {
+        return find(key) != null;
+    }
+
+    /**
+     * Puts the value for the key replacing the old one [time O(log(N))]
+     *
+     * @param key the key
+     * @param value the value
+     * @return new version of the map (this if the same value is already stored)
+     */
+    public PersistentSortedMap<K, V> put(K key, V value) {
+        return withRoot(putHelper(this.root, key, value));
+    }
+
+    private Vertex<K, V> putHelper(Vertex<K, V> vertex, K key, V value) {
+        if (vertex == null) {
+            return new Vertex<>(null, key, value, null);
+        }
+        int cmp = comparator.compare(key, vertex.key);
+        if (cmp < 0) {
+            Vertex<K, V> newLeft = putHelper(vertex.left, key, value);
+            return newLeft == vertex.left ? vertex
+                : join(newLeft, vertex.key, vertex.value, vertex.right);
+        }
+        if (cmp > 0) {
+            Vertex<K, V> newRight = putHelper(vertex.right, key, value);
+            return newRight == vertex.right ? vertex
+                : join(vertex.left, vertex.key, vertex.value, newRight);
+        }
+        return vertex.value == value ? vertex : new Vertex<>(vertex.left, key, value, vertex.right);
+    }
+
+    /**
+     * Removes the entry for the key [time O(log(N))]
+     *
+     * @param key the key
+     * @return new version of the map (this if there is no such key)
+     */
+    public PersistentSortedMap<K, V> remove(K key) {
+        return withRoot(removeHelper(this.root, key));
+    }
+
+    private Vertex<K, V> removeHelper(Vertex<K, V> vertex, K key) {
+        if (vertex == null) {
+            return null;
+        }
+        int cmp = comparator.compare(key, vertex.key);
+        if (cmp < 0) {
+            Vertex<K, V> newLeft = removeHelper(vertex.left, key);
+            return newLeft == vertex.left ? vertex
+                : join(newLeft, vertex.key, vertex.value, vertex.right);
+        }
+        if (cmp > 0) {
+            Vertex<K, V> newRight = removeHelper(vertex.right, key);
+            return newRight == vertex.right ? vertex
+                : join(vertex.left, vertex.key, vertex.value, newRight);
+        }
+        return join(vertex.left, vertex.right);
+    }
+
+    /**
+     * @return amount of the entries [time O(1)]
+     */
+    public int size() {
+        return size(this.root);
+    }
+
+    public boolean isEmpty() {
+        return this.root == null;
+    }
+
+    /**
+     * @return the smallest key [time O(log(N))]
+     */
+    public K firstKey() {
+        if (this.root == null) {
+            throw new NoSuchElementException();
+        }
+        Vertex<K, V> vertex = this.root;
+        while (vertex.left != null) {
+            vertex = vertex.left;
+        }
+        return vertex.key;
+    }
+
+    /**
+     * @return the greatest key [time O(log(N))]
+     */
+    public K lastKey() {
+        if (this.root == null) {
+            throw new NoSuchElementException();
+        }
+        Vertex<K, V> vertex = this.root;
+        while (vertex.right != null) {
+            vertex = vertex.right;
+        }
+        return vertex.key;
+    }
+
+    /**
+     * find the nearest key on the given side [time O(log(N))]
+     *
+     * @param key the key
+     * @param smaller true to search the smaller keys, false to search the greater keys
+     * @param inclusive true if the key itself is accepted
+     * @return the nearest key or null
+     */
+    private K nearestKey(K key, boolean smaller, boolean inclusive) {
+        K out = null;
+        Vertex<K, V> vertex = this.root;
+        while (vertex != null) {
+            int cmp = comparator.compare(key, vertex.key);
+            if (cmp == 0 && inclusive) {
+                return vertex.key;
+            }
+            if (smaller ? cmp > 0 : cmp < 0) {
+                out = vertex.key;
+                vertex = smaller ? vertex.right : vertex.left;
+            } else {
+                vertex = smaller ? vertex.left : vertex.right;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the greatest key less than or equal to the given key, or null [time O(log(N))]
+     */
+    public K floorKey(K key) {
+        return nearestKey(key, true, true);
+    }
+
+    /**
+     * @return the least key greater than or equal to the given key, or null [time O(log(N))]
+     */
+    public K ceilingKey(K key) {
+        return nearestKey(key, false, true);
+    }
+
+    /**
+     * @return the greatest key strictly less than the given key, or null [time O(log(N))]
+     */
+    public K lowerKey(K key) {
+        return nearestKey(key, true, false);
+    }
+
+    /**
+     * @return the least key strictly greater than the given key, or null [time O(log(N))]
+     */
+    public K higherKey(K key) {
+        return nearestKey(key, false, false);
+    }
+
+    /**
+     * @param key the key (not necessarily stored in the map)
+     * @return amount of the keys strictly less than the given key [time O(log(N))]
+     */
+    public int rank(K key) {
+        int out = 0;
+        Vertex<K, V> vertex = this.root;
+        while (vertex != null) {
+            int cmp = comparator.compare(key, vertex.key);
+            if (cmp <= 0) {
+                vertex = vertex.left;
+            } else {
+                out += size(vertex.left) + 1;
+                vertex = vertex.right;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param index rank of the needed key
+     * @return the key with the given amount of smaller keys [time O(log(N))]
+     */
+    public K select(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Vertex<K, V> vertex = this.root;
+        while (true) {
+            int leftSize = size(vertex.left);
+            if (index < leftSize) {
+                vertex = vertex.left;
+            } else if (index == leftSize) {
+                return vertex.key;
+            } else {
+                index -= leftSize + 1;
+                vertex = vertex.right;
+            }
+        }
+    }
+
+    /**
+     * @param toKey high endpoint (exclusive)
+     * @return map of the keys strictly less than toKey sharing the vertices with this one [time
+     * O(log(N))]
+     */
+    public PersistentSortedMap<K, V> headMap(K toKey) {
+        return withRoot(split(this.root, toKey).left);
+    }
+
+    /**
+     * @param fromKey low endpoint (inclusive)
+     * @return map of the keys greater than or equal to fromKey sharing the vertices with this one
+     * [time O(log(N))]
+     */
+    public PersistentSortedMap<K, V> tailMap(K fromKey) {
+        Split<K, V> split = split(this.root, fromKey);
+        if (split.found == null) {
+            return withRoot(split.right);
+        }
+        return withRoot(join(null, split.found.key, split.found.value, split.right));
+    }
+
+    /**
+     * @param fromKey low endpoint (inclusive)
+     * @param toKey high endpoint (exclusive)
+     * @return map of the keys from fromKey to toKey sharing the vertices with this one [time
+     * O(log(N))]
+     */
+    public PersistentSortedMap<K, V> subMap(K fromKey, K toKey) {
+        if (comparator.compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return headMap(toKey).tailMap(fromKey);
+    }
+
+    /**
+     * @return iterator over the entries in the key order [time O(1) amortized per entry]
+     */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<Map.Entry<K, V>>() {
+            private final ArrayDeque<Vertex<K, V>> path = new ArrayDeque<>();
+
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Vertex<K, V> vertex) {
+                for (; vertex != null; vertex = vertex.left) {
+                    path.push(vertex);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Vertex<K, V> vertex = path.pop();
+                pushLeft(vertex.right);
+                return new AbstractMap.SimpleImmutableEntry<>(vertex.key, vertex.value);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder outString = new StringBuilder();
+        Iterator<Map.Entry<K, V>> it = iterator();
+        while (it.hasNext()) {
+            outString.append(it.next());
+            if (it.hasNext()) {
+                outString.append(", ");
+            }
+        }
+        return "{" + outString + "}";
+    }
+}
@@ -1,27 +1,57 @@
 package persistent;
 
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * persistent hash map stored as a compressed hash array mapped trie (CHAMP). Every level consumes
+ * the next powerOfBranchingFactor bits of the key hash, nodes store only the occupied slots, and
+ * the trie is only as deep as needed to tell the keys apart. Updates copy the path to the
+ * changed slot, removals inline the last entry of a subnode back into its parent, so equal maps
+ * have the same shape.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
 public class PersistentTreeMap<K, V> {
 
+    private static final int HASH_BITS = 32;
+    private static final int MAX_POWER_OF_BRANCHING_FACTOR = 5; //the bitmaps are ints
+    private static final Object NOT_FOUND = new Object();
+
     final NodeMap<K, V> root;
+    final int powerOfBranchingFactor; //amount of hash bits consumed by every level
     final int branchingFactor;
-    final int depth;
-    final int base; //BF ^ (depth - 1)
+    final HashStrategy hashStrategy;
     final int size;
 
     /**
-     * package-private constructor for the persistent array
+     * package-private constructor for the persistent tree map
      *
      * @param root a designated/initial vertex in a graph
-     * @param branchingFactor number of children at each node
-     * @param depth maximum number of edges in the paths from the root to any node
-     * @param base branchingFactor ^ (depth - 1)
-     * @param size number of leaves in the graph or elements in the persistent tree map
+     * @param powerOfBranchingFactor amount of hash bits consumed by every level
+     * @param hashStrategy hash function of the keys
+     * @param size number of the entries in the persistent tree map
      */
-    PersistentTreeMap(NodeMap<K, V> root, int branchingFactor, int depth, int base, int size) {
+    PersistentTreeMap(NodeMap<K, V> root, int powerOfBranchingFactor, HashStrategy hashStrategy,
+        int size) {
         this.root = root;
-        this.branchingFactor = branchingFactor;
-        this.depth = depth;
-        this.base = base;
+        this.powerOfBranchingFactor = powerOfBranchingFactor;
+        this.branchingFactor = 1 << powerOfBranchingFactor;
+        this.hashStrategy = hashStrategy;
         this.size = size;
     }
 
@@ -29,209 +59,1408 @@ public class PersistentTreeMap<K, V> {
      * constructor for the persistent tree map
      *
      * @param powerOfBranchingFactor the branching factor will be equals to
-     * 2^powerOfBranchingFactor
+     * 2^powerOfBranchingFactor (from 1 to 5)
+     * @param hashStrategy hash function of the keys
+     */
+    public PersistentTreeMap(int powerOfBranchingFactor, HashStrategy hashStrategy) {
+        this(new NodeMap<>(), powerOfBranchingFactor, hashStrategy, 0);
+        if (powerOfBranchingFactor < 1 || powerOfBranchingFactor > MAX_POWER_OF_BRANCHING_FACTOR) {
+            throw new IllegalArgumentException(
+                "Power of branching factor must be from 1 to " + MAX_POWER_OF_BRANCHING_FACTOR);
+        }
+    }
+
+    /**
+     * constructor for the persistent tree map hashing the keys by their hashCode
+     *
+     * @param powerOfBranchingFactor the branching factor will be equals to
+     * 2^powerOfBranchingFactor (from 1 to 5)
      */
     public PersistentTreeMap(int powerOfBranchingFactor) {
-        int branchingFactor = 1;
-        for (int i = 0; i < powerOfBranchingFactor; i++) {
-            branchingFactor *= 2;
+        this(powerOfBranchingFactor, HashStrategy.IDENTITY);
+    }
+
+    /**
+     * constructor for the persistent tree map with the branching factor 32
+     */
+    public PersistentTreeMap() {
+        this(MAX_POWER_OF_BRANCHING_FACTOR);
+    }
+
+    private int hash(Object key) {
+        return hashStrategy.hash(key);
+    }
+
+    /**
+     * @param hash hash of the key
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @return bit of the slot for the key on the level
+     */
+    private int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & (branchingFactor - 1));
+    }
+
+    /**
+     * find the value for the key [time O(log(BF, N))]
+     *
+     * @param key the key
+     * @return the value or NOT_FOUND
+     */
+    private Object find(K key) {
+        return find(this.root, key, hash(key), 0);
+    }
+
+    /**
+     * find the value for the key in the subgraph [time O(log(BF, N))]
+     *
+     * @param node root node for the subgraph
+     * @param key the key
+     * @param hash hash of the key
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @return the value or NOT_FOUND
+     */
+    private Object find(NodeMap<K, V> node, Object key, int hash, int shift) {
+        for (; shift < HASH_BITS; shift += powerOfBranchingFactor) {
+            int bit = bit(hash, shift);
+            if ((node.dataMap & bit) != 0) {
+                int i = node.dataIndex(bit);
+                return node.hasKey(i, key, hash) ? node.value(i) : NOT_FOUND;
+            }
+            if ((node.nodeMap & bit) == 0) {
+                return NOT_FOUND;
+            }
+
+            //down
+            node = node.node(node.nodeIndex(bit));
         }
-        this.branchingFactor = branchingFactor;
-        this.root = new NodeMap<K, V>(branchingFactor);
-        this.depth = 5;
-        this.base = (int) Math.pow(branchingFactor, depth - 1);
-        this.size = 0;
+        int i = node.collisionIndex(key);
+        return i == -1 ? NOT_FOUND : node.value(i);
     }
 
-    private class TraverseData {
+    /**
+     * Returns the element for the specified key in this tree map [time O(log(BF, N))]
+     *
+     * @param key key of the element to be returned
+     * @return the element for the specified key in the given tree map or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Object value = find(key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
 
-        NodeMap<K, V> currentNode;
+    public boolean containsKey(K key) {
+        return find(key) != NOT_FOUND;
+    }
 
-        NodeMap<K, V> currentNewNode;
-        NodeMap<K, V> newRoot;
-        int index;
-        int base;
+    /**
+     * @return number of the entries in the tree map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
 
-        public TraverseData(NodeMap<K, V> currentNode, NodeMap<K, V> currentNewNode,
-            NodeMap<K, V> newRoot, int index,
-            int base) {
-            this.currentNode = currentNode;
-            this.currentNewNode = currentNewNode;
-            this.newRoot = newRoot;
-            this.index = index;
-            this.base = base;
+    /**
+     * Puts the value for the key replacing the old one [time O(log(BF, N))]
+     *
+     * @param key key of the element to put
+     * @param value value of the element to be stored for the specified key
+     * @return new version of the persistent tree map (this if the same value is already stored)
+     */
+    public PersistentTreeMap<K, V> put(K key, V value) {
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = putHelper(this.root, key, value, hash(key), 0, sizeChange,
+            null);
+        return withRoot(newRoot, this.size + sizeChange[0]);
+    }
+
+    /**
+     * recursive function copying the path to the slot of the key
+     *
+     * @param node root node for the current subgraph
+     * @param key key of the element to put
+     * @param value value of the element
+     * @param hash hash of the key
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param sizeChange set to 1 if the key is added
+     * @param owner token of the transient batch or null
+     * @return new root for the current subgraph
+     */
+    private NodeMap<K, V> putHelper(NodeMap<K, V> node, K key, V value, int hash, int shift,
+        int[] sizeChange, Object owner) {
+        if (shift >= HASH_BITS) { //collision node
+            int i = node.collisionIndex(key);
+            if (i == -1) {
+                sizeChange[0] = 1;
+                return node.copyAndInsertEntry(owner, 0, node.entries(), hash, key, value);
+            }
+            return node.value(i) == value ? node : node.copyAndSetValue(owner, i, value);
         }
 
+        int bit = bit(hash, shift);
+        if ((node.dataMap & bit) != 0) {
+            int i = node.dataIndex(bit);
+            if (node.hasKey(i, key, hash)) {
+                return node.value(i) == value ? node : node.copyAndSetValue(owner, i, value);
+            }
+            sizeChange[0] = 1;
+            NodeMap<K, V> subNode = mergeEntries(node.key(i), node.value(i), node.hashes[i], key,
+                value, hash, shift + powerOfBranchingFactor, owner);
+            return node.copyAndMigrateToNode(owner, bit, subNode);
+        }
+        if ((node.nodeMap & bit) != 0) {
+            NodeMap<K, V> child = node.node(node.nodeIndex(bit));
+            NodeMap<K, V> newChild = putHelper(child, key, value, hash,
+                shift + powerOfBranchingFactor, sizeChange, owner);
+            return newChild == child ? node : node.copyAndSetNode(owner, bit, newChild);
+        }
+        sizeChange[0] = 1;
+        return node.copyAndInsertEntry(owner, bit, node.dataIndex(bit), hash, key, value);
     }
 
     /**
-     * traverse one level in the graph
+     * create the subgraph for two entries whose hashes are equal on the upper levels, it is as
+     * deep as needed to tell them apart
      *
-     * @param data metadata before this level
-     * @return metadata after this level
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param owner token of the transient batch or null
+     * @return root of the subgraph
      */
-    private TraverseData traverseOneLevel(TraverseData data) {
-        NodeMap<K, V> currentNode = data.currentNode;
-        NodeMap<K, V> currentNewNode = data.currentNewNode;
-        int nextBranch = data.index / data.base;
+    private NodeMap<K, V> mergeEntries(K key0, V value0, int hash0, K key1, V value1, int hash1,
+        int shift, Object owner) {
+        if (shift >= HASH_BITS) {
+            return new NodeMap<>(owner, 0, 0, new int[]{hash0, hash1},
+                new Object[]{key0, value0, key1, value1});
+        }
+        int chunk0 = (hash0 >>> shift) & (branchingFactor - 1);
+        int chunk1 = (hash1 >>> shift) & (branchingFactor - 1);
+        if (chunk0 == chunk1) {
+            return new NodeMap<>(owner, 0, 1 << chunk0, new int[0], new Object[]{mergeEntries(
+                key0, value0, hash0, key1, value1, hash1, shift + powerOfBranchingFactor, owner)});
+        }
+        if (chunk0 < chunk1) {
+            return new NodeMap<>(owner, (1 << chunk0) | (1 << chunk1), 0, new int[]{hash0, hash1},
+                new Object[]{key0, value0, key1, value1});
+        }
+        return new NodeMap<>(owner, (1 << chunk0) | (1 << chunk1), 0, new int[]{hash1, hash0},
+            new Object[]{key1, value1, key0, value0});
+    }
 
-        currentNewNode.set(nextBranch, new NodeMap<K, V>(branchingFactor));
-        if (currentNode != null) {
+    /**
+     * Removes the element for the key [time O(log(BF, N))]
+     *
+     * @param key key of the element to be removed
+     * @return new version of the persistent tree map (this if there is no such key)
+     */
+    public PersistentTreeMap<K, V> remove(K key) {
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = removeHelper(this.root, key, hash(key), 0, sizeChange, null);
+        return withRoot(newRoot, this.size + sizeChange[0]);
+    }
 
-            for (int anotherBranch = 0; anotherBranch < branchingFactor; anotherBranch++) {
-                if (anotherBranch == nextBranch) {
-                    continue;
+    /**
+     * recursive function copying the path to the slot of the key, the subnode left with one entry
+     * is replaced by this entry
+     *
+     * @param node root node for the current subgraph
+     * @param key key of the element to be removed
+     * @param hash hash of the key
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param sizeChange set to -1 if the key is removed
+     * @param owner token of the transient batch or null
+     * @return new root for the current subgraph
+     */
+    private NodeMap<K, V> removeHelper(NodeMap<K, V> node, K key, int hash, int shift,
+        int[] sizeChange, Object owner) {
+        if (shift >= HASH_BITS) { //collision node
+            int i = node.collisionIndex(key);
+            if (i == -1) {
+                return node;
+            }
+            sizeChange[0] = -1;
+            return node.copyAndRemoveEntry(owner, 0, i);
+        }
+
+        int bit = bit(hash, shift);
+        if ((node.dataMap & bit) != 0) {
+            int i = node.dataIndex(bit);
+            if (!node.hasKey(i, key, hash)) {
+                return node;
+            }
+            sizeChange[0] = -1;
+            return node.copyAndRemoveEntry(owner, bit, i);
+        }
+        if ((node.nodeMap & bit) != 0) {
+            NodeMap<K, V> child = node.node(node.nodeIndex(bit));
+            NodeMap<K, V> newChild = removeHelper(child, key, hash, shift + powerOfBranchingFactor,
+                sizeChange, owner);
+            if (sizeChange[0] == 0) {
+                return node;
+            }
+            if (newChild.nodeMap == 0 && newChild.entries() == 1) { //inline the last entry
+                return node.copyAndMigrateToEntry(owner, bit, newChild.hashes[0], newChild.key(0),
+                    newChild.value(0));
+            }
+            return newChild == child ? node : node.copyAndSetNode(owner, bit, newChild);
+        }
+        return node;
+    }
+
+    /**
+     * Replaces the value for the key with the result of the function in one descent
+     * [time O(log(BF, N))]
+     *
+     * @param key the key
+     * @param function function of the key and the present value (or null), null result removes
+     * the key
+     * @return new version of the persistent tree map (this if the result is the present value)
+     */
+    public PersistentTreeMap<K, V> compute(K key,
+        BiFunction<? super K, ? super V, ? extends V> function) {
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = computeHelper(this.root, key, hash(key), 0, function,
+            sizeChange);
+        return withRoot(newRoot, this.size + sizeChange[0]);
+    }
+
+    /**
+     * @param function function of the key computing the value if there is no value for it, null
+     * result leaves the map unchanged
+     * @return new version of the persistent tree map (this if the key is present)
+     */
+    public PersistentTreeMap<K, V> computeIfAbsent(K key,
+        Function<? super K, ? extends V> function) {
+        return compute(key, (k, value) -> value != null ? value : function.apply(k));
+    }
+
+    /**
+     * @param function function of the key and the present value, null result removes the key
+     * @return new version of the persistent tree map (this if the key is absent)
+     */
+    public PersistentTreeMap<K, V> computeIfPresent(K key,
+        BiFunction<? super K, ? super V, ? extends V> function) {
+        return compute(key, (k, value) -> value == null ? null : function.apply(k, value));
+    }
+
+    /**
+     * @param value value put if there is no value for the key
+     * @param function function of the present value and the given one, null result removes the
+     * key
+     * @return new version of the persistent tree map
+     */
+    public PersistentTreeMap<K, V> merge(K key, V value,
+        BiFunction<? super V, ? super V, ? extends V> function) {
+        return compute(key,
+            (k, oldValue) -> oldValue == null ? value : function.apply(oldValue, value));
+    }
+
+    /**
+     * recursive function calling the function in the slot of the key, the path is copied only if
+     * the value is changed and the subnode left with one entry is replaced by this entry
+     *
+     * @param node root node for the current subgraph
+     * @param key the key
+     * @param hash hash of the key
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param function function of the key and the present value (or null)
+     * @param sizeChange set to 1 if the key is added, to -1 if it is removed
+     * @return new root for the current subgraph
+     */
+    private NodeMap<K, V> computeHelper(NodeMap<K, V> node, K key, int hash, int shift,
+        BiFunction<? super K, ? super V, ? extends V> function, int[] sizeChange) {
+        if (shift >= HASH_BITS) { //collision node
+            int i = node.collisionIndex(key);
+            if (i == -1) {
+                V newValue = function.apply(key, null);
+                if (newValue == null) {
+                    return node;
                 }
-                currentNewNode.set(anotherBranch, currentNode.get(anotherBranch));
+                sizeChange[0] = 1;
+                return node.copyAndInsertEntry(null, 0, node.entries(), hash, key, newValue);
             }
-            currentNode = currentNode.get(nextBranch);
+            V newValue = function.apply(key, node.value(i));
+            if (newValue == null) {
+                sizeChange[0] = -1;
+                return node.copyAndRemoveEntry(null, 0, i);
+            }
+            return newValue == node.value(i) ? node : node.copyAndSetValue(null, i, newValue);
+        }
+
+        int bit = bit(hash, shift);
+        if ((node.dataMap & bit) != 0) {
+            int i = node.dataIndex(bit);
+            if (node.hasKey(i, key, hash)) {
+                V newValue = function.apply(key, node.value(i));
+                if (newValue == null) {
+                    sizeChange[0] = -1;
+                    return node.copyAndRemoveEntry(null, bit, i);
+                }
+                return newValue == node.value(i) ? node : node.copyAndSetValue(null, i, newValue);
+            }
+            V newValue = function.apply(key, null);
+            if (newValue == null) {
+                return node;
+            }
+            sizeChange[0] = 1;
+            NodeMap<K, V> subNode = mergeEntries(node.key(i), node.value(i), node.hashes[i], key,
+                newValue, hash, shift + powerOfBranchingFactor, null);
+            return node.copyAndMigrateToNode(null, bit, subNode);
+        }
+        if ((node.nodeMap & bit) != 0) {
+            NodeMap<K, V> child = node.node(node.nodeIndex(bit));
+            NodeMap<K, V> newChild = computeHelper(child, key, hash,
+                shift + powerOfBranchingFactor, function, sizeChange);
+            if (newChild == child) {
+                return node;
+            }
+            if (newChild.nodeMap == 0 && newChild.entries() == 1) { //inline the last entry
+                return node.copyAndMigrateToEntry(null, bit, newChild.hashes[0], newChild.key(0),
+                    newChild.value(0));
+            }
+            return node.copyAndSetNode(null, bit, newChild);
         }
-        currentNewNode = currentNewNode.get(nextBranch);
-        return new TraverseData(currentNode, currentNewNode, data.newRoot, data.index % data.base,
-            data.base);
+        V newValue = function.apply(key, null);
+        if (newValue == null) {
+            return node;
+        }
+        sizeChange[0] = 1;
+        return node.copyAndInsertEntry(null, bit, node.dataIndex(bit), hash, key, newValue);
     }
 
     /**
-     * traverse the old structure while creating the new one and copying data into it
+     * Puts all entries of the map in one transient batch, every node on the changed paths is
+     * copied once [time O(K * log(BF, N))]
      *
-     * @param index destination index in the tree map
-     * @return metadata of traversing
+     * @param map entries to be put
+     * @return new version of the persistent tree map
      */
-    private TraverseData traverse(int index) {
-        NodeMap<K, V> newRoot = new NodeMap<K, V>(branchingFactor);
-        NodeMap<K, V> currentNode = this.root;
-        NodeMap<K, V> currentNewNode = newRoot;
+    public PersistentTreeMap<K, V> putAll(Map<? extends K, ? extends V> map) {
+        return putAll(map.entrySet());
+    }
 
-        for (int b = base; b > 1; b = b / branchingFactor) {
-            TraverseData data = traverseOneLevel(
-                new TraverseData(currentNode, currentNewNode, newRoot, index, b));
-            currentNode = data.currentNode;
-            currentNewNode = data.currentNewNode;
-            index = data.index;
+    /**
+     * Puts all entries in one transient batch, every node on the changed paths is copied once
+     * [time O(K * log(BF, N))]
+     *
+     * @param entries entries to be put, the later ones win
+     * @return new version of the persistent tree map
+     */
+    public PersistentTreeMap<K, V> putAll(
+        Iterable<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        Builder<K, V> builder = toBuilder();
+        for (Map.Entry<? extends K, ? extends V> entry : entries) {
+            builder.put(entry.getKey(), entry.getValue());
         }
-        return new TraverseData(currentNode, currentNewNode, newRoot, index, 1);
+        return builder.build();
     }
 
     /**
-     * Returns the element for the specified key in this tree map
+     * Removes all given keys in one transient batch [time O(K * log(BF, N))]
      *
-     * @param key key of the element to be returned
-     * @return the element for the specified key in the given tree map
+     * @param keys keys to be removed
+     * @return new version of the persistent tree map
      */
-    public V get(K key) {
-        NodeMap<K, V> currentNode = getHelper(key);
-        if (currentNode == null) {
-            return null;
+    public PersistentTreeMap<K, V> removeAll(Iterable<? extends K> keys) {
+        Builder<K, V> builder = toBuilder();
+        for (K key : keys) {
+            builder.remove(key);
         }
+        return builder.build();
+    }
+
+    /**
+     * @return transient builder starting from this version [time O(1)]
+     */
+    public Builder<K, V> toBuilder() {
+        return new Builder<>(this);
+    }
+
+    /**
+     * transient version of the map for batches of updates. The nodes copied by the builder are
+     * owned by it and are changed in place by the following updates, so a batch copies every
+     * node at most once. Building the persistent version ends the ownership: the next updates of
+     * the builder copy the nodes again. The builder is not thread-safe
+     *
+     * @param <K> type of the keys
+     * @param <V> type of the values
+     */
+    public static class Builder<K, V> {
 
-        int position = currentNode.keys.indexOf(key);
-        if (position != -1) {
-            return (V) currentNode.values.get(position);
-        } else {
-            return null;
+        private final PersistentTreeMap<K, V> origin;
+        private NodeMap<K, V> root;
+        private int size;
+        private Object owner = new Object();
+
+        private Builder(PersistentTreeMap<K, V> origin) {
+            this.origin = origin;
+            this.root = origin.root;
+            this.size = origin.size;
+        }
+
+        /**
+         * Puts the value for the key replacing the old one [time O(log(BF, N))]
+         *
+         * @return this builder
+         */
+        public Builder<K, V> put(K key, V value) {
+            int[] sizeChange = new int[1];
+            root = origin.putHelper(root, key, value, origin.hash(key), 0, sizeChange, owner);
+            size += sizeChange[0];
+            return this;
+        }
+
+        /**
+         * Removes the element for the key [time O(log(BF, N))]
+         *
+         * @return this builder
+         */
+        public Builder<K, V> remove(K key) {
+            int[] sizeChange = new int[1];
+            root = origin.removeHelper(root, key, origin.hash(key), 0, sizeChange, owner);
+            size += sizeChange[0];
+            return this;
+        }
+
+        /**
+         * @return number of the entries in the builder
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return persistent version with all updates of the builder
+         */
+        public PersistentTreeMap<K, V> build() {
+            owner = new Object(); //the built version must not be changed
+            return origin.withRoot(root, size);
+        }
+    }
+
+    private void checkLayout(PersistentTreeMap<K, V> other) {
+        if (other.powerOfBranchingFactor != this.powerOfBranchingFactor) {
+            throw new IllegalArgumentException("Branching factors are different");
+        }
+        if (other.hashStrategy != this.hashStrategy) {
+            throw new IllegalArgumentException("Hash strategies are different");
         }
     }
 
     /**
-     * Replaces the element (to be returned) at the specified position in this list with the
-     * specified element
+     * @return slot of the key in the root node
+     */
+    int rootSlot(K key) {
+        return hash(key) & (branchingFactor - 1);
+    }
+
+    /**
+     * join the maps splitting the keys by the root slots. The subnodes of the roots are shared,
+     * so joining takes O(BF) time
      *
-     * @param key key of the element to put
-     * @param value value of the element to be stored for the specified key
+     * @param shards maps with the same branching factor, the ith one holds only the keys whose
+     * root slot modulo the amount of the shards is i
+     * @return map with the keys of all shards
+     */
+    static <K, V> PersistentTreeMap<K, V> joinShards(PersistentTreeMap<K, V>[] shards) {
+        PersistentTreeMap<K, V> first = shards[0];
+        int newSize = 0;
+        for (PersistentTreeMap<K, V> shard : shards) {
+            first.checkLayout(shard);
+            newSize += shard.size;
+        }
+        NodeAssembler<K, V> out = new NodeAssembler<>(first.branchingFactor);
+        for (int slot = 0; slot < first.branchingFactor; slot++) {
+            copySlot(out, shards[slot % shards.length].root, 1 << slot);
+        }
+        return first.withRoot(out.build(first.root, null), newSize);
+    }
+
+    private PersistentTreeMap<K, V> withRoot(NodeMap<K, V> newRoot, int newSize) {
+        if (newRoot == this.root) {
+            return this;
+        }
+        return new PersistentTreeMap<>(newRoot, this.powerOfBranchingFactor, this.hashStrategy,
+            newSize);
+    }
+
+    /**
+     * combine the entries of both maps walking the tries at once. The subgraphs shared by both
+     * maps are reused without visiting them, so merging versions that differ in K keys takes
+     * O(K * log(BF, N)) time plus the size of the subgraphs present in one map only. The resolver
+     * is called for the keys stored in both maps with different values
+     *
+     * @param other map with the same branching factor
+     * @param resolver function of the value of this map and the value of the other one
      * @return new version of the persistent tree map
      */
-    public PersistentTreeMap<K, V> put(K key, V value) {
-        int index = getHash(key);
+    public PersistentTreeMap<K, V> merge(PersistentTreeMap<K, V> other,
+        BiFunction<? super V, ? super V, ? extends V> resolver) {
+        checkLayout(other);
+        if (this.size == 0) {
+            return other;
+        }
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = mergeHelper(this.root, other.root, 0, resolver, sizeChange);
+        if (newRoot == other.root) {
+            return other;
+        }
+        return withRoot(newRoot, this.size + sizeChange[0]);
+    }
+
+    /**
+     * @param other map with the same branching factor
+     * @return map with the entries of both maps, the values of the other map win
+     */
+    public PersistentTreeMap<K, V> union(PersistentTreeMap<K, V> other) {
+        return merge(other, (thisValue, otherValue) -> otherValue);
+    }
+
+    /**
+     * @param other map with the same branching factor
+     * @return map with the entries of this map whose keys are stored in the other one
+     */
+    public PersistentTreeMap<K, V> intersect(PersistentTreeMap<K, V> other) {
+        checkLayout(other);
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = intersectHelper(this.root, other.root, 0, sizeChange);
+        return withRoot(newRoot, this.size + sizeChange[0]);
+    }
 
-        TraverseData traverseData = traverse(index);
-        NodeMap<K, V> node;
-        if (traverseData.currentNode != null) {
-            node = new NodeMap<K, V>(traverseData.currentNode.get(traverseData.index), key, value);
-        } else {
-            node = new NodeMap<K, V>(null, key, value);
+    /**
+     * @param other map with the same branching factor
+     * @return map with the entries of this map whose keys are not stored in the other one
+     */
+    public PersistentTreeMap<K, V> difference(PersistentTreeMap<K, V> other) {
+        checkLayout(other);
+        int[] newSize = new int[1];
+        NodeMap<K, V> newRoot = differenceHelper(this.root, other.root, 0, newSize);
+        return withRoot(newRoot, newSize[0]);
+    }
+
+    /**
+     * three-way merge of two versions derived from the common one. The subgraphs the same in two
+     * of the three maps are taken without visiting them, so only the paths changed by both
+     * versions are walked. The policy is called only for the keys changed differently by both
+     * versions
+     *
+     * @param base common ancestor of both versions
+     * @param left first version derived from the base
+     * @param right second version derived from the base
+     * @param policy decides the value of the conflicting key
+     * @return map with the changes of both versions
+     */
+    public static <K, V> PersistentTreeMap<K, V> merge3(PersistentTreeMap<K, V> base,
+        PersistentTreeMap<K, V> left, PersistentTreeMap<K, V> right,
+        ConflictPolicy<K, V> policy) {
+        left.checkLayout(base);
+        left.checkLayout(right);
+        int[] sizeChange = new int[1];
+        NodeMap<K, V> newRoot = left.merge3Helper(base.root, left.root, right.root, 0, policy,
+            sizeChange);
+        if (newRoot == right.root) {
+            return right;
         }
-        traverseData.currentNewNode.set(traverseData.index, node);
-        for (int i = 0; i < branchingFactor; i++) {
-            if (i == traverseData.index) {
+        return left.withRoot(newRoot, left.size + sizeChange[0]);
+    }
+
+    /**
+     * @return amount of the entries in the subgraph [time O(size of the subgraph)]
+     */
+    private static int count(NodeMap<?, ?> node) {
+        int out = node.entries();
+        for (int i = 0; i < Integer.bitCount(node.nodeMap); i++) {
+            out += count(node.node(i));
+        }
+        return out;
+    }
+
+    /**
+     * create the node with the only entry on the level
+     */
+    private NodeMap<K, V> singleton(int hash, K key, V value, int shift) {
+        int bit = shift >= HASH_BITS ? 0 : bit(hash, shift);
+        return new NodeMap<>(null, bit, 0, new int[]{hash}, new Object[]{key, value});
+    }
+
+    private static <V> V resolve(V thisValue, V otherValue,
+        BiFunction<? super V, ? super V, ? extends V> resolver) {
+        return thisValue == otherValue ? thisValue : resolver.apply(thisValue, otherValue);
+    }
+
+    /**
+     * recursive function merging two subgraphs
+     *
+     * @param a root node for the subgraph of this map
+     * @param b root node for the subgraph of the other map
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param resolver function of the value of this map and the value of the other one
+     * @param sizeChange increased by the amount of the keys stored in the other map only
+     * @return new root for the subgraph
+     */
+    private NodeMap<K, V> mergeHelper(NodeMap<K, V> a, NodeMap<K, V> b, int shift,
+        BiFunction<? super V, ? super V, ? extends V> resolver, int[] sizeChange) {
+        if (a == b) {
+            return a;
+        }
+        NodeAssembler<K, V> out = new NodeAssembler<>(a.entries() + b.entries());
+        if (shift >= HASH_BITS) { //collision nodes
+            for (int i = 0; i < a.entries(); i++) {
+                int j = b.collisionIndex(a.key(i));
+                out.addEntry(0, a.hashes[i], a.key(i),
+                    j == -1 ? a.value(i) : resolve(a.value(i), b.value(j), resolver));
+            }
+            for (int j = 0; j < b.entries(); j++) {
+                if (a.collisionIndex(b.key(j)) == -1) {
+                    out.addEntry(0, b.hashes[j], b.key(j), b.value(j));
+                    sizeChange[0]++;
+                }
+            }
+            return out.build(a, b);
+        }
+
+        int next = shift + powerOfBranchingFactor;
+        for (int slot = 0; slot < branchingFactor; slot++) {
+            int bit = 1 << slot;
+            if ((a.dataMap & bit) != 0) {
+                int i = a.dataIndex(bit);
+                if ((b.dataMap & bit) != 0) {
+                    int j = b.dataIndex(bit);
+                    if (b.hasKey(j, a.key(i), a.hashes[i])) {
+                        out.addEntry(bit, a.hashes[i], a.key(i),
+                            resolve(a.value(i), b.value(j), resolver));
+                    } else {
+                        out.addNode(bit, mergeEntries(a.key(i), a.value(i), a.hashes[i],
+                            b.key(j), b.value(j), b.hashes[j], next, null));
+                        sizeChange[0]++;
+                    }
+                } else if ((b.nodeMap & bit) != 0) {
+                    out.addNode(bit, mergeHelper(singleton(a.hashes[i], a.key(i), a.value(i), next),
+                        b.node(b.nodeIndex(bit)), next, resolver, sizeChange));
+                } else {
+                    out.addEntry(bit, a.hashes[i], a.key(i), a.value(i));
+                }
+            } else if ((a.nodeMap & bit) != 0) {
+                NodeMap<K, V> child = a.node(a.nodeIndex(bit));
+                if ((b.dataMap & bit) != 0) {
+                    int j = b.dataIndex(bit);
+                    out.addNode(bit, mergeHelper(child,
+                        singleton(b.hashes[j], b.key(j), b.value(j), next), next, resolver,
+                        sizeChange));
+                } else if ((b.nodeMap & bit) != 0) {
+                    out.addNode(bit, mergeHelper(child, b.node(b.nodeIndex(bit)), next, resolver,
+                        sizeChange));
+                } else {
+                    out.addNode(bit, child);
+                }
+            } else if ((b.dataMap & bit) != 0) {
+                int j = b.dataIndex(bit);
+                out.addEntry(bit, b.hashes[j], b.key(j), b.value(j));
+                sizeChange[0]++;
+            } else if ((b.nodeMap & bit) != 0) {
+                NodeMap<K, V> child = b.node(b.nodeIndex(bit));
+                out.addNode(bit, child);
+                sizeChange[0] += count(child);
+            }
+        }
+        return out.build(a, b);
+    }
+
+    /**
+     * recursive function intersecting two subgraphs
+     *
+     * @param a root node for the subgraph of this map
+     * @param b root node for the subgraph of the other map
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param sizeChange decreased by the amount of the removed keys
+     * @return new root for the subgraph
+     */
+    private NodeMap<K, V> intersectHelper(NodeMap<K, V> a, NodeMap<K, V> b, int shift,
+        int[] sizeChange) {
+        if (a == b) {
+            return a;
+        }
+        NodeAssembler<K, V> out = new NodeAssembler<>(a.entries());
+        if (shift >= HASH_BITS) { //collision nodes
+            for (int i = 0; i < a.entries(); i++) {
+                if (b.collisionIndex(a.key(i)) != -1) {
+                    out.addEntry(0, a.hashes[i], a.key(i), a.value(i));
+                } else {
+                    sizeChange[0]--;
+                }
+            }
+            return out.build(a, b);
+        }
+
+        int next = shift + powerOfBranchingFactor;
+        for (int slot = 0; slot < branchingFactor; slot++) {
+            int bit = 1 << slot;
+            if ((a.dataMap & bit) != 0) {
+                int i = a.dataIndex(bit);
+                boolean found = false;
+                if ((b.dataMap & bit) != 0) {
+                    found = b.hasKey(b.dataIndex(bit), a.key(i), a.hashes[i]);
+                } else if ((b.nodeMap & bit) != 0) {
+                    found = find(b.node(b.nodeIndex(bit)), a.key(i), a.hashes[i], next)
+                        != NOT_FOUND;
+                }
+                if (found) {
+                    out.addEntry(bit, a.hashes[i], a.key(i), a.value(i));
+                } else {
+                    sizeChange[0]--;
+                }
+            } else if ((a.nodeMap & bit) != 0) {
+                NodeMap<K, V> child = a.node(a.nodeIndex(bit));
+                if ((b.dataMap & bit) != 0) {
+                    int j = b.dataIndex(bit);
+                    Object value = find(child, b.key(j), b.hashes[j], next);
+                    sizeChange[0] -= count(child);
+                    if (value != NOT_FOUND) {
+                        @SuppressWarnings("unchecked")
+                        V thisValue = (V) value;
+                        out.addEntry(bit, b.hashes[j], b.key(j), thisValue);
+                        sizeChange[0]++;
+                    }
+                } else if ((b.nodeMap & bit) != 0) {
+                    out.add(bit, intersectHelper(child, b.node(b.nodeIndex(bit)), next,
+                        sizeChange));
+                } else {
+                    sizeChange[0] -= count(child);
+                }
+            }
+        }
+        return out.build(a, b);
+    }
+
+    /**
+     * recursive function subtracting the subgraph of the other map
+     *
+     * @param a root node for the subgraph of this map
+     * @param b root node for the subgraph of the other map
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param newSize increased by the amount of the kept keys
+     * @return new root for the subgraph
+     */
+    private NodeMap<K, V> differenceHelper(NodeMap<K, V> a, NodeMap<K, V> b, int shift,
+        int[] newSize) {
+        if (a == b) {
+            return new NodeMap<>();
+        }
+        NodeAssembler<K, V> out = new NodeAssembler<>(a.entries());
+        if (shift >= HASH_BITS) { //collision nodes
+            for (int i = 0; i < a.entries(); i++) {
+                if (b.collisionIndex(a.key(i)) == -1) {
+                    out.addEntry(0, a.hashes[i], a.key(i), a.value(i));
+                    newSize[0]++;
+                }
+            }
+            return out.build(a, null);
+        }
+
+        int next = shift + powerOfBranchingFactor;
+        for (int slot = 0; slot < branchingFactor; slot++) {
+            int bit = 1 << slot;
+            if ((a.dataMap & bit) != 0) {
+                int i = a.dataIndex(bit);
+                boolean found = false;
+                if ((b.dataMap & bit) != 0) {
+                    found = b.hasKey(b.dataIndex(bit), a.key(i), a.hashes[i]);
+                } else if ((b.nodeMap & bit) != 0) {
+                    found = find(b.node(b.nodeIndex(bit)), a.key(i), a.hashes[i], next)
+                        != NOT_FOUND;
+                }
+                if (!found) {
+                    out.addEntry(bit, a.hashes[i], a.key(i), a.value(i));
+                    newSize[0]++;
+                }
+            } else if ((a.nodeMap & bit) != 0) {
+                NodeMap<K, V> child = a.node(a.nodeIndex(bit));
+                if ((b.dataMap & bit) != 0) {
+                    int j = b.dataIndex(bit);
+                    child = removeHelper(child, b.key(j), b.hashes[j], next, new int[1], null);
+                } else if ((b.nodeMap & bit) != 0) {
+                    int[] childSize = new int[1];
+                    out.add(bit, differenceHelper(child, b.node(b.nodeIndex(bit)), next,
+                        childSize));
+                    newSize[0] += childSize[0];
+                    continue;
+                }
+                out.add(bit, child);
+                newSize[0] += count(child);
+            }
+        }
+        return out.build(a, null);
+    }
+
+    /**
+     * recursive function merging two versions of the subgraph of the base
+     *
+     * @param b root node for the subgraph of the base
+     * @param l root node for the subgraph of the left version
+     * @param r root node for the subgraph of the right version
+     * @param shift amount of the hash bits consumed by the upper levels
+     * @param policy decides the value of the conflicting key
+     * @param sizeChange increased by the difference of the amount of the keys from the left
+     * version
+     * @return new root for the subgraph
+     */
+    private NodeMap<K, V> merge3Helper(NodeMap<K, V> b, NodeMap<K, V> l, NodeMap<K, V> r,
+        int shift, ConflictPolicy<K, V> policy, int[] sizeChange) {
+        if (l == r || r == b) {
+            return l;
+        }
+        if (l == b) {
+            sizeChange[0] += sizeDifference(l, r, shift);
+            return r;
+        }
+        NodeAssembler<K, V> out = new NodeAssembler<>(l.entries());
+        if (shift >= HASH_BITS) { //collision nodes
+            merge3Entries(out, 0, shift, b, 0, b.entries(), l, 0, l.entries(), r, 0, r.entries(),
+                policy, sizeChange);
+            return out.build(l, r);
+        }
+
+        int next = shift + powerOfBranchingFactor;
+        for (int slot = 0; slot < branchingFactor; slot++) {
+            int bit = 1 << slot;
+            if (sameSlot(l, r, bit) || sameSlot(r, b, bit)) {
+                copySlot(out, l, bit);
+            } else if (sameSlot(l, b, bit)) {
+                copySlot(out, r, bit);
+                if ((l.nodeMap & r.nodeMap & bit) != 0) {
+                    sizeChange[0] += sizeDifference(l.node(l.nodeIndex(bit)),
+                        r.node(r.nodeIndex(bit)), next);
+                } else {
+                    sizeChange[0] += slotSize(r, bit) - slotSize(l, bit);
+                }
+            } else if (((b.nodeMap | l.nodeMap | r.nodeMap) & bit) == 0) { //entries only
+                int bi = b.dataIndex(bit);
+                int li = l.dataIndex(bit);
+                int ri = r.dataIndex(bit);
+                merge3Entries(out, bit, next,
+                    b, bi, (b.dataMap & bit) != 0 ? bi + 1 : bi,
+                    l, li, (l.dataMap & bit) != 0 ? li + 1 : li,
+                    r, ri, (r.dataMap & bit) != 0 ? ri + 1 : ri, policy, sizeChange);
+            } else {
+                out.add(bit, merge3Helper(slotNode(b, bit, next), slotNode(l, bit, next),
+                    slotNode(r, bit, next), next, policy, sizeChange));
+            }
+        }
+        return out.build(l, r);
+    }
+
+    /**
+     * three-way merge of the entries stored in the nodes themselves: in one slot or in the
+     * collision nodes. The entries of each node are given by the range of their indices
+     *
+     * @param bit bit of the slot (0 for the collision nodes)
+     * @param next amount of the hash bits consumed by the levels above the slot content
+     */
+    private void merge3Entries(NodeAssembler<K, V> out, int bit, int next,
+        NodeMap<K, V> b, int bFrom, int bTo, NodeMap<K, V> l, int lFrom, int lTo,
+        NodeMap<K, V> r, int rFrom, int rTo, ConflictPolicy<K, V> policy, int[] sizeChange) {
+        ArrayList<Integer> hashes = new ArrayList<>();
+        ArrayList<K> keys = new ArrayList<>();
+        ArrayList<Object> values = new ArrayList<>();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        NodeMap<K, V>[] nodes = new NodeMap[]{l, r, b};
+        int[] from = {lFrom, rFrom, bFrom};
+        int[] to = {lTo, rTo, bTo};
+        for (int n = 0; n < nodes.length; n++) {
+            for (int i = from[n]; i < to[n]; i++) {
+                K key = nodes[n].key(i);
+                int hash = nodes[n].hashes[i];
+                if (indexOf(keys, hashes, key, hash) != -1) {
+                    continue;
+                }
+                hashes.add(hash);
+                keys.add(key);
+                values.add(merge3Values(key,
+                    valueIn(b, bFrom, bTo, key, hash), valueIn(l, lFrom, lTo, key, hash),
+                    valueIn(r, rFrom, rTo, key, hash), policy));
+            }
+        }
+
+        NodeMap<K, V> node = new NodeMap<>();
+        int merged = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            if (values.get(i) == NOT_FOUND) {
                 continue;
             }
-            if (traverseData.currentNode == null) {
-                traverseData.currentNewNode.set(i, null);
+            @SuppressWarnings("unchecked")
+            V value = (V) values.get(i);
+            merged++;
+            if (bit == 0) {
+                out.addEntry(0, hashes.get(i), keys.get(i), value);
             } else {
-                traverseData.currentNewNode.set(i, traverseData.currentNode.get(i));
+                node = putHelper(node, keys.get(i), value, hashes.get(i), next, new int[1], null);
             }
         }
+        if (bit != 0) {
+            out.add(bit, node);
+        }
+        sizeChange[0] += merged - (lTo - lFrom);
+    }
+
+    private static <K> int indexOf(ArrayList<K> keys, ArrayList<Integer> hashes, K key,
+        int hash) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (hashes.get(i) == hash && key.equals(keys.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return value of the key among the entries of the node with indices from the range or
+     * NOT_FOUND
+     */
+    private static Object valueIn(NodeMap<?, ?> node, int from, int to, Object key, int hash) {
+        for (int i = from; i < to; i++) {
+            if (node.hasKey(i, key, hash)) {
+                return node.value(i);
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return value changed by one of the versions or chosen by the policy, NOT_FOUND if the key
+     * is removed
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Object merge3Values(K key, Object b, Object l, Object r,
+        ConflictPolicy<K, V> policy) {
+        if (Objects.equals(l, r) || Objects.equals(r, b)) {
+            return l;
+        }
+        if (Objects.equals(l, b)) {
+            return r;
+        }
+        V value = policy.resolve(key, b == NOT_FOUND ? null : (V) b,
+            l == NOT_FOUND ? null : (V) l, r == NOT_FOUND ? null : (V) r);
+        return value == null ? NOT_FOUND : value;
+    }
+
+    /**
+     * @return true if the slot of both nodes holds the same subnode or the equal entries
+     */
+    private static boolean sameSlot(NodeMap<?, ?> x, NodeMap<?, ?> y, int bit) {
+        if ((x.dataMap & bit) != 0) {
+            if ((y.dataMap & bit) == 0) {
+                return false;
+            }
+            int i = x.dataIndex(bit);
+            int j = y.dataIndex(bit);
+            return y.hasKey(j, x.key(i), x.hashes[i]) && Objects.equals(x.value(i), y.value(j));
+        }
+        if ((x.nodeMap & bit) != 0) {
+            return (y.nodeMap & bit) != 0 && x.node(x.nodeIndex(bit)) == y.node(y.nodeIndex(bit));
+        }
+        return ((y.dataMap | y.nodeMap) & bit) == 0;
+    }
+
+    private static <K, V> void copySlot(NodeAssembler<K, V> out, NodeMap<K, V> node, int bit) {
+        if ((node.dataMap & bit) != 0) {
+            int i = node.dataIndex(bit);
+            out.addEntry(bit, node.hashes[i], node.key(i), node.value(i));
+        } else if ((node.nodeMap & bit) != 0) {
+            out.addNode(bit, node.node(node.nodeIndex(bit)));
+        }
+    }
 
-        return new PersistentTreeMap<>(traverseData.newRoot, this.branchingFactor, this.depth,
-            this.base, this.size + 1);
+    /**
+     * @return amount of the entries in the slot [time O(size of the subgraph in the slot)]
+     */
+    private static int slotSize(NodeMap<?, ?> node, int bit) {
+        if ((node.dataMap & bit) != 0) {
+            return 1;
+        }
+        if ((node.nodeMap & bit) != 0) {
+            return count(node.node(node.nodeIndex(bit)));
+        }
+        return 0;
+    }
+
+    /**
+     * @return content of the slot as the node on the next level
+     */
+    private NodeMap<K, V> slotNode(NodeMap<K, V> node, int bit, int next) {
+        if ((node.dataMap & bit) != 0) {
+            int i = node.dataIndex(bit);
+            return singleton(node.hashes[i], node.key(i), node.value(i), next);
+        }
+        if ((node.nodeMap & bit) != 0) {
+            return node.node(node.nodeIndex(bit));
+        }
+        return new NodeMap<>();
     }
 
     /**
-     * Removes the last element in this list
+     * walks only the subgraphs which are not shared by both nodes
      *
-     * @return new version of the persistent tree map
+     * @return amount of the entries of the second subgraph minus the amount of the first one
      */
-    public PersistentTreeMap<K, V> remove(K key) {
-        return put(key, null);
+    private int sizeDifference(NodeMap<K, V> from, NodeMap<K, V> to, int shift) {
+        if (from == to) {
+            return 0;
+        }
+        int out = to.entries() - from.entries();
+        if (shift >= HASH_BITS) {
+            return out;
+        }
+        int nodes = from.nodeMap | to.nodeMap;
+        while (nodes != 0) {
+            int bit = Integer.lowestOneBit(nodes);
+            nodes ^= bit;
+            if ((from.nodeMap & to.nodeMap & bit) != 0) {
+                out += sizeDifference(from.node(from.nodeIndex(bit)), to.node(to.nodeIndex(bit)),
+                    shift + powerOfBranchingFactor);
+            } else if ((from.nodeMap & bit) != 0) {
+                out -= count(from.node(from.nodeIndex(bit)));
+            } else {
+                out += count(to.node(to.nodeIndex(bit)));
+            }
+        }
+        return out;
     }
 
-    private NodeMap<K, V> getHelper(K key) {
-        NodeMap<K, V> currentNode = this.root;
-        int index = getHash(key);
-        for (int b = base; b > 1; b = b / branchingFactor) {
-            int nextBranch = index / b;
+    /**
+     * collects the slots of a new node in the bit order and keeps the trie canonical: empty
+     * subnodes are dropped and the subnodes with the only entry are inlined
+     */
+    private static class NodeAssembler<K, V> {
 
-            //down
-            currentNode = currentNode.get(nextBranch);
-            if (currentNode == null) {
+        private int dataMap = 0;
+        private int nodeMap = 0;
+        private int entries = 0;
+        private int[] hashes;
+        private Object[] keysAndValues;
+        private final ArrayDeque<NodeMap<K, V>> nodes = new ArrayDeque<>(); //reversed order
+
+        NodeAssembler(int expectedEntries) {
+            this.hashes = new int[Math.max(expectedEntries, 1)];
+            this.keysAndValues = new Object[2 * hashes.length];
+        }
+
+        void addEntry(int bit, int hash, K key, V value) {
+            if (entries == hashes.length) {
+                hashes = Arrays.copyOf(hashes, 2 * entries);
+                keysAndValues = Arrays.copyOf(keysAndValues, 4 * entries);
+            }
+            dataMap |= bit;
+            hashes[entries] = hash;
+            keysAndValues[2 * entries] = key;
+            keysAndValues[2 * entries + 1] = value;
+            entries++;
+        }
+
+        void addNode(int bit, NodeMap<K, V> node) {
+            nodeMap |= bit;
+            nodes.push(node);
+        }
+
+        void add(int bit, NodeMap<K, V> node) {
+            if (node.content.length == 0) {
+                return;
+            }
+            if (node.nodeMap == 0 && node.entries() == 1) {
+                addEntry(bit, node.hashes[0], node.key(0), node.value(0));
+                return;
+            }
+            addNode(bit, node);
+        }
+
+        /**
+         * @return true if the collected node is equal to the given one slot by slot
+         */
+        private boolean sameAs(NodeMap<K, V> node) {
+            if (node == null || node.dataMap != dataMap || node.nodeMap != nodeMap
+                || node.entries() != entries) {
+                return false;
+            }
+            for (int i = 0; i < 2 * entries; i++) {
+                if (node.content[i] != keysAndValues[i]) {
+                    return false;
+                }
+            }
+            int i = 2 * entries;
+            for (NodeMap<K, V> child : nodes) {
+                if (node.content[i++] != child) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return one of the given nodes if it is the same as the collected one, new node
+         * otherwise
+         */
+        NodeMap<K, V> build(NodeMap<K, V> a, NodeMap<K, V> b) {
+            if (sameAs(a)) {
+                return a;
+            }
+            if (sameAs(b)) {
+                return b;
+            }
+            Object[] content = new Object[2 * entries + nodes.size()];
+            System.arraycopy(keysAndValues, 0, content, 0, 2 * entries);
+            int i = 2 * entries;
+            for (NodeMap<K, V> child : nodes) {
+                content[i++] = child;
+            }
+            return new NodeMap<>(null, dataMap, nodeMap, Arrays.copyOf(hashes, entries),
+                content);
+        }
+    }
+
+    /**
+     * @return iterator over the entries in the trie order [time O(1) amortized per entry]
+     */
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * @return iterator over the keys in the trie order
+     */
+    public Iterator<K> keys() {
+        Iterator<Map.Entry<K, V>> it = entryIterator();
+        return new Iterator<K>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public K next() {
+                return it.next().getKey();
+            }
+        };
+    }
+
+    /**
+     * @return iterator over the values in the trie order
+     */
+    public Iterator<V> values() {
+        Iterator<Map.Entry<K, V>> it = entryIterator();
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return it.next().getValue();
+            }
+        };
+    }
+
+    /**
+     * perform the action for every entry in the trie order [time O(N)]
+     *
+     * @param action the action
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEachHelper(this.root, action);
+    }
+
+    private void forEachHelper(NodeMap<K, V> node, BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < node.entries(); i++) {
+            action.accept(node.key(i), node.value(i));
+        }
+        for (int i = 0; i < Integer.bitCount(node.nodeMap); i++) {
+            forEachHelper(node.node(i), action);
+        }
+    }
+
+    /**
+     * @return Spliterator walking through the entries and splitting the trie along the subnodes
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        ArrayDeque<NodeMap<K, V>> subgraphs = new ArrayDeque<>();
+        subgraphs.push(this.root);
+        return new EntrySpliterator(null, subgraphs, this.size);
+    }
+
+    /**
+     * @return sequential Stream of the entries
+     */
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return possibly parallel Stream of the entries
+     */
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * depth-first walk through the trie: the entries of the current node are visited first, its
+     * subnodes are put on the stack of the subgraphs to be visited. Splitting hands over the
+     * bottom half of the stack, which holds the biggest subgraphs
+     */
+    private class EntrySpliterator implements Spliterator<Map.Entry<K, V>> {
+
+        private NodeMap<K, V> current; //node whose entries are visited now
+        private int entryIndex = 0;
+        private final ArrayDeque<NodeMap<K, V>> subgraphs;
+        private long estimatedSize;
+
+        EntrySpliterator(NodeMap<K, V> current, ArrayDeque<NodeMap<K, V>> subgraphs,
+            long estimatedSize) {
+            this.current = current;
+            this.subgraphs = subgraphs;
+            this.estimatedSize = estimatedSize;
+        }
+
+        /**
+         * take the next subgraph from the stack and push its subnodes
+         */
+        private void visit(NodeMap<K, V> node) {
+            current = node;
+            entryIndex = 0;
+            for (int i = Integer.bitCount(node.nodeMap) - 1; i >= 0; i--) {
+                subgraphs.push(node.node(i));
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            while (current == null || entryIndex == current.entries()) {
+                if (subgraphs.isEmpty()) {
+                    return false;
+                }
+                visit(subgraphs.pop());
+            }
+            action.accept(new AbstractMap.SimpleImmutableEntry<>(current.key(entryIndex),
+                current.value(entryIndex)));
+            entryIndex++;
+            return true;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (subgraphs.size() == 1 && current == null) {
+                visit(subgraphs.pop()); //expand the only subgraph
+            }
+            if (subgraphs.size() < 2) {
                 return null;
             }
-            index = index % b;
+            ArrayDeque<NodeMap<K, V>> prefix = new ArrayDeque<>();
+            for (int i = subgraphs.size() / 2; i > 0; i--) {
+                prefix.push(subgraphs.pollLast());
+            }
+            estimatedSize /= 2;
+            return new EntrySpliterator(null, prefix, estimatedSize);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL | IMMUTABLE;
         }
-        return currentNode.get(index);
     }
 
-    public boolean containsKey(K key) {
-        NodeMap<K, V> currentNode = getHelper(key);
-        if (currentNode == null) {
-            return false;
+    /**
+     * The buckets are the groups of the keys with the same full hash: every entry stored in a
+     * slot is a bucket of one key, the collision nodes hold the bigger ones [time O(N)]
+     *
+     * @return histogram of the bucket sizes, the ith element is the amount of the buckets of i
+     * keys
+     */
+    public int[] bucketHistogram() {
+        return bucketHistogramHelper(this.root, 0, new int[1]);
+    }
+
+    private int[] bucketHistogramHelper(NodeMap<K, V> node, int shift, int[] histogram) {
+        if (shift >= HASH_BITS) { //collision node
+            histogram = grow(histogram, node.entries());
+            histogram[node.entries()]++;
+            return histogram;
         }
-        int position = currentNode.keys.indexOf(key);
-        return position != -1;
+        if (node.entries() != 0) {
+            histogram = grow(histogram, 1);
+            histogram[1] += node.entries();
+        }
+        for (int i = 0; i < Integer.bitCount(node.nodeMap); i++) {
+            histogram = bucketHistogramHelper(node.node(i), shift + powerOfBranchingFactor,
+                histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the size of the biggest bucket of the keys with the same full hash, 0 for the
+     * empty map [time O(N)]
+     */
+    public int maxChainLength() {
+        return bucketHistogram().length - 1;
+    }
+
+    /**
+     * The clustered hashes make the paths to their keys longer than log(BF, N) [time O(N)]
+     *
+     * @return histogram of the entry depths, the ith element is the amount of the entries stored
+     * in the nodes of the ith level
+     */
+    public int[] depthHistogram() {
+        return depthHistogramHelper(this.root, 0, new int[1]);
     }
 
-    private int getHash(K key) {
-        return Math.abs(key.hashCode()) % (this.base * this.branchingFactor);
+    private int[] depthHistogramHelper(NodeMap<K, V> node, int depth, int[] histogram) {
+        histogram = grow(histogram, depth);
+        histogram[depth] += node.entries();
+        for (int i = 0; i < Integer.bitCount(node.nodeMap); i++) {
+            histogram = depthHistogramHelper(node.node(i), depth + 1, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the histogram having the ith element
+     */
+    private static int[] grow(int[] histogram, int i) {
+        return i < histogram.length ? histogram : Arrays.copyOf(histogram, i + 1);
     }
 
     /**
      * recursive function returning the string representation of the current subgraph
      *
      * @param node root node for the current subgraph
-     * @param curDepth depth left till the leaf level
+     * @param shift amount of the hash bits consumed by the upper levels
      * @return string representation of the current subgraph
      */
-    private String toStringHelper(NodeMap<K, V> node, int curDepth) {
-        if (node.keys != null && node.keys.size() != 0) {
-            return node.values.toString();
-        }
-
-        if (node.children == null) {
-            return "_";
+    private String toStringHelper(NodeMap<K, V> node, int shift) {
+        StringBuilder outString = new StringBuilder();
+        if (shift >= HASH_BITS) { //collision node
+            for (int i = 0; i < node.entries(); i++) {
+                outString.append(i == 0 ? "" : ", ").append(node.value(i));
+            }
+            return "[" + outString + "]";
         }
 
-        StringBuilder outString = new StringBuilder();
         for (int i = 0; i < branchingFactor; i++) {
-            if (node.get(i) == null) {
-                outString.append("_");
-                //break;
+            int bit = 1 << i;
+            if ((node.dataMap & bit) != 0) {
+                outString.append(node.value(node.dataIndex(bit)));
+            } else if ((node.nodeMap & bit) != 0) {
+                outString.append(toStringHelper(node.node(node.nodeIndex(bit)),
+                    shift + powerOfBranchingFactor));
             } else {
-                if (curDepth == 0) {
-                    outString.append(node.get(i).toString());
-
-                } else {
-                    outString.append(toStringHelper(node.get(i), curDepth - 1));
-                }
+                outString.append("_");
             }
 
             if (i + 1 != branchingFactor) {
@@ -243,7 +1472,6 @@ public class PersistentTreeMap<K, V> {
 
     @Override
     public String toString() {
-        return toStringHelper(this.root, this.depth);
+        return toStringHelper(this.root, 0);
     }
 }
-
@@ -0,0 +1,217 @@
+package persistent;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+/**
+ * thread-safe, has one version of the map for all sharing threads. The keys are split into shards
+ * by the slot of the root node, every shard is a separate version updated by its own CAS, so the
+ * writers of the keys from different shards do not conflict
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class PersistentTreeMapParallel<K, V> {
+
+    private final AtomicReferenceArray<PersistentTreeMap<K, V>> shards;
+
+    /**
+     * constructor for the thread-safe map
+     *
+     * @param powerOfBranchingFactor the branching factor will be equals to
+     * 2^powerOfBranchingFactor (from 1 to 5)
+     * @param powerOfShards amount of the shards will be equals to 2^powerOfShards (from 0 to
+     * powerOfBranchingFactor)
+     * @param hashStrategy hash function of the keys
+     */
+    public PersistentTreeMapParallel(int powerOfBranchingFactor, int powerOfShards,
+        HashStrategy hashStrategy) {
+        PersistentTreeMap<K, V> init = new PersistentTreeMap<>(powerOfBranchingFactor,
+            hashStrategy);
+        if (powerOfShards < 0 || powerOfShards > powerOfBranchingFactor) {
+            throw new IllegalArgumentException(
+                "Power of shards must be from 0 to " + powerOfBranchingFactor);
+        }
+        shards = new AtomicReferenceArray<>(1 << powerOfShards);
+        for (int i = 0; i < shards.length(); i++) {
+            shards.set(i, init);
+        }
+    }
+
+    /**
+     * constructor for the thread-safe map hashing the keys by their hashCode
+     *
+     * @param powerOfBranchingFactor the branching factor will be equals to
+     * 2^powerOfBranchingFactor (from 1 to 5)
+     * @param powerOfShards amount of the shards will be equals to 2^powerOfShards (from 0 to
+     * powerOfBranchingFactor)
+     */
+    public PersistentTreeMapParallel(int powerOfBranchingFactor, int powerOfShards) {
+        this(powerOfBranchingFactor, powerOfShards, HashStrategy.IDENTITY);
+    }
+
+    /**
+     * constructor for the thread-safe map with the branching factor 32 and 32 shards
+     */
+    public PersistentTreeMapParallel() {
+        this(5, 5);
+    }
+
+    private int shard(K key) {
+        return shards.get(0).rootSlot(key) & (shards.length() - 1);
+    }
+
+    /**
+     * Returns the element for the specified key
+     *
+     * @param key key of the element to be returned
+     * @return the element for the specified key or null
+     */
+    public V get(K key) {
+        return shards.get(shard(key)).get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return shards.get(shard(key)).containsKey(key);
+    }
+
+    /**
+     * Puts the value for the key replacing the old one
+     *
+     * @return the previous value or null
+     */
+    public V put(K key, V value) {
+        int shard = shard(key);
+        PersistentTreeMap<K, V> curVersion;
+        PersistentTreeMap<K, V> newVersion;
+        boolean success;
+        do {
+            curVersion = shards.get(shard);
+            newVersion = curVersion.put(key, value);
+            success = shards.compareAndSet(shard, curVersion, newVersion);
+        } while (!success);
+        return curVersion.get(key);
+    }
+
+    /**
+     * Puts the value for the key if there is no value for it
+     *
+     * @return the present value or null if the value is put
+     */
+    public V putIfAbsent(K key, V value) {
+        int shard = shard(key);
+        PersistentTreeMap<K, V> curVersion;
+        V oldValue;
+        boolean success;
+        do {
+            curVersion = shards.get(shard);
+            oldValue = curVersion.get(key);
+            if (oldValue != null) {
+                return oldValue;
+            }
+            success = shards.compareAndSet(shard, curVersion, curVersion.put(key, value));
+        } while (!success);
+        return null;
+    }
+
+    /**
+     * Removes the element for the key
+     *
+     * @return the removed value or null
+     */
+    public V remove(K key) {
+        int shard = shard(key);
+        PersistentTreeMap<K, V> curVersion;
+        PersistentTreeMap<K, V> newVersion;
+        boolean success;
+        do {
+            curVersion = shards.get(shard);
+            newVersion = curVersion.remove(key);
+            success = newVersion == curVersion
+                || shards.compareAndSet(shard, curVersion, newVersion);
+        } while (!success);
+        return curVersion.get(key);
+    }
+
+    /**
+     * atomically replaces the value for the key with the result of the function, the function
+     * may be called several times if other threads change the shard of the key
+     *
+     * @param function function of the key and the present value (or null), null result removes
+     * the key
+     * @return the new value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        int shard = shard(key);
+        PersistentTreeMap<K, V> curVersion;
+        PersistentTreeMap<K, V> newVersion;
+        Object[] newValue = new Object[1]; //the result of the last call
+        boolean success;
+        do {
+            curVersion = shards.get(shard);
+            newVersion = curVersion.compute(key, (k, value) -> {
+                V result = function.apply(k, value);
+                newValue[0] = result;
+                return result;
+            });
+            success = newVersion == curVersion
+                || shards.compareAndSet(shard, curVersion, newVersion);
+        } while (!success);
+        return (V) newValue[0];
+    }
+
+    /**
+     * atomically puts the value if there is no value for the key or combines both values
+     *
+     * @param function function of the present value and the given one, null result removes the
+     * key
+     * @return the new value or null
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> function) {
+        return compute(key,
+            (k, oldValue) -> oldValue == null ? value : function.apply(oldValue, value));
+    }
+
+    /**
+     * @return number of the entries, the shards are read one by one
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.length(); i++) {
+            size += shards.get(i).size();
+        }
+        return size;
+    }
+
+    /**
+     * The versions of all shards are read until two reads in a row are the same, so the snapshot
+     * is the state of the map at the moment between them. Joining the shards takes O(BF) time
+     *
+     * @return immutable version of the whole map
+     */
+    public PersistentTreeMap<K, V> snapshot() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PersistentTreeMap<K, V>[] versions = new PersistentTreeMap[shards.length()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = shards.get(i);
+        }
+        boolean success;
+        do {
+            success = true;
+            for (int i = 0; i < versions.length; i++) {
+                PersistentTreeMap<K, V> version = shards.get(i);
+                if (version != versions[i]) {
+                    versions[i] = version;
+                    success = false;
+                }
+            }
+        } while (!success);
+        return PersistentTreeMap.joinShards(versions);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
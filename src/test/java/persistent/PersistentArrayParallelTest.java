@@ -80,4 +80,30 @@ public class PersistentArrayParallelTest {
         }
     }
 
+    @Test
+    public void snapshotTest() throws InterruptedException {
+        PersistentArrayParallel<Integer> data = new PersistentArrayParallel<>(2);
+        data.add(0);
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i < 1000; i++) {
+                data.add(i);
+            }
+        });
+        writer.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            PersistentArray<Integer> snapshot = data.snapshot();
+            int size = snapshot.size();
+            for (int i = 0; i < size; i++) {
+                assertEquals(Integer.valueOf(i), snapshot.get(i));
+            }
+            assertEquals(size, snapshot.size());
+        }
+        writer.join();
+
+        PersistentArray<Integer> snapshot = data.snapshot();
+        data.add(1000);
+        assertEquals(1000, snapshot.size());
+        assertEquals(1001, data.size());
+    }
+
 }
@@ -89,6 +89,37 @@ public class PersistentArrayTest {
         assertEquals("[0, 1, 2, 3, 4]", ll.toString());
     }
 
+    @Test
+    public void toPersistentLinkedListSharesNodes() {
+        PersistentArray<Integer> a = new PersistentArray<>(1);
+        for (int i = 0; i < 10; i++) {
+            a = a.add(i);
+        }
+        PersistentLinkedList<Integer> ll = a.toPersistentLinkedList();
+        PersistentLinkedList<Integer> edited = ll.remove(3).addFirst(-1).add(5, 50).removeLast();
+        assertEquals("[-1, 0, 1, 2, 4, 50, 5, 6, 7, 8]", edited.toString());
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", ll.toString());
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", a.toPersistentLinkedList().toString());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) a.get(i));
+        }
+
+        PersistentLinkedList<Integer> reversed = new PersistentLinkedList<>(1);
+        for (int i = 0; i < 5; i++) {
+            reversed = reversed.addFirst(i);
+        }
+        PersistentLinkedList<Integer> again = reversed.toPersistentArray().add(5)
+            .toPersistentLinkedList();
+        assertEquals("[0, 1, 2, 3, 4, 5]", again.toString()); //graph order of the reversed list
+        assertEquals("[9, 0, 1, 2, 3]", again.removeLast().addFirst(9).removeLast().toString());
+        assertEquals("[4, 3, 2, 1, 0]", reversed.toString());
+
+        PersistentLinkedList<Integer> empty = new PersistentArray<Integer>(1)
+            .toPersistentLinkedList();
+        assertEquals(0, empty.size());
+        assertEquals("[7]", empty.addLast(7).toString());
+    }
+
     @Test
     public void testNestedStructures() {
         PersistentArray<Integer> inside = new PersistentArray<Integer>(1).add(100);
@@ -0,0 +1,84 @@
+package persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import org.junit.Test;
+
+public class PersistentArraysTest {
+
+    private static String toList(PersistentArray<?> array) {
+        ArrayList<Object> out = new ArrayList<>();
+        for (int i = 0; i < array.size(); i++) {
+            out.add(array.get(i));
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void sort() {
+        PersistentArray<Integer> a = new PersistentArray<Integer>(1).add(3).add(0).add(4).add(1)
+            .add(2);
+        PersistentArray<Integer> sorted = PersistentArrays.sort(a);
+        assertEquals("(((0, 1), (2, 3)), ((4, _), _))", sorted.toString());
+        assertEquals("[3, 0, 4, 1, 2]", toList(a));
+        assertEquals("[4, 3, 2, 1, 0]", toList(PersistentArrays.sort(a, Comparator.reverseOrder())));
+        assertEquals("(_, _)", PersistentArrays.sort(new PersistentArray<Integer>(1)).toString());
+        assertEquals("(5, _)",
+            PersistentArrays.sort(new PersistentArray<Integer>(1).add(5)).toString());
+        assertEquals("[0, 1, 2, 3, 4, 5]", toList(sorted.add(5)));
+    }
+
+    @Test
+    public void sortIsStable() {
+        PersistentArray<String> a = new PersistentArray<>(2);
+        for (String s : new String[]{"bb", "a", "cc", "b", "aa", "c"}) {
+            a = a.add(s);
+        }
+        Comparator<String> byLength = Comparator.comparingInt(String::length);
+        assertEquals("[a, b, c, bb, cc, aa]", toList(PersistentArrays.sort(a, byLength)));
+        assertEquals("[a, b, c, bb, cc, aa]", toList(PersistentArrays.parallelSort(a, byLength)));
+    }
+
+    @Test
+    public void parallelSortRandomly() {
+        Random random = new Random(36);
+        for (int power = 1; power <= 5; power += 2) {
+            PersistentArray<Integer> a = new PersistentArray<>(power);
+            ArrayList<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 20000; i++) {
+                int x = random.nextInt(1000);
+                a = a.add(x);
+                expected.add(x);
+            }
+            Collections.sort(expected);
+            PersistentArray<Integer> sorted = PersistentArrays.parallelSort(a);
+            assertEquals(expected.toString(), toList(sorted));
+            assertEquals(expected.toString(), toList(PersistentArrays.sort(a)));
+            assertEquals(expected.toString(), toList(sorted.add(1000).pop()));
+        }
+    }
+
+    @Test
+    public void binarySearch() {
+        PersistentArray<Integer> a = new PersistentArray<>(2);
+        for (int i = 0; i < 100; i++) {
+            a = a.add(2 * i);
+        }
+        assertEquals(0, PersistentArrays.binarySearch(a, 0));
+        assertEquals(21, PersistentArrays.binarySearch(a, 42));
+        assertEquals(99, PersistentArrays.binarySearch(a, 198));
+        assertEquals(-1, PersistentArrays.binarySearch(a, -5));
+        assertEquals(-22, PersistentArrays.binarySearch(a, 41));
+        assertEquals(-101, PersistentArrays.binarySearch(a, 1000));
+        assertEquals(-1, PersistentArrays.binarySearch(new PersistentArray<Integer>(2), 7));
+
+        PersistentArray<Integer> reversed = PersistentArrays.sort(a, Comparator.reverseOrder());
+        assertEquals(78, PersistentArrays.binarySearch(reversed, 42, Comparator.reverseOrder()));
+        assertTrue(PersistentArrays.binarySearch(reversed, 43, Comparator.reverseOrder()) < 0);
+    }
+}
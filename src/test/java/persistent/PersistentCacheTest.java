@@ -0,0 +1,120 @@
+package persistent;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class PersistentCacheTest {
+
+    @Test
+    public void leastRecentlyUsed() {
+        PersistentCache<Integer, String> cache = new PersistentCache<>(3);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        assertEquals("one", cache.get(1)); //2 is the least recently used now
+        cache.put(4, "four");
+        assertNull(cache.get(2));
+        assertEquals("one", cache.get(1));
+        assertEquals("three", cache.get(3));
+        assertEquals("four", cache.get(4));
+        assertEquals(3, cache.size());
+        assertEquals("{1=one, 3=three, 4=four}", cache.toString());
+
+        cache.put(1, "ONE");
+        cache.remove(3);
+        assertEquals("{4=four, 1=ONE}", cache.toString());
+        assertEquals("ONE", cache.get(1)); //already the most recently used
+        assertEquals("{4=four, 1=ONE}", cache.toString());
+        assertEquals(5, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void weight() {
+        PersistentCache<Integer, String> cache = new PersistentCache<>(10, String::length, 0,
+            TimeUnit.SECONDS);
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        assertEquals(8, cache.weight());
+        cache.put(3, "ccc");
+        assertEquals(2, cache.size());
+        assertEquals(7, cache.weight());
+        assertNull(cache.get(1));
+        cache.put(2, "b");
+        assertEquals(4, cache.weight());
+        cache.put(4, "dddddddddd");
+        assertEquals("{4=dddddddddd}", cache.toString());
+        assertEquals(3, cache.evictionCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooHeavy() {
+        new PersistentCache<Integer, String>(3, String::length, 0, TimeUnit.SECONDS)
+            .put(1, "aaaa");
+    }
+
+    @Test
+    public void timeToLive() {
+        AtomicLong time = new AtomicLong();
+        PersistentCache<Integer, String> cache = new PersistentCache<>(10, value -> 1, 5,
+            TimeUnit.NANOSECONDS, time::get);
+        cache.put(1, "one");
+        time.set(3);
+        cache.put(2, "two");
+        assertEquals("one", cache.get(1)); //the reading does not prolong the life
+        PersistentCache.Snapshot<Integer, String> snapshot = cache.snapshot();
+        time.set(5);
+        assertNull(snapshot.get(1));
+        assertEquals("two", snapshot.get(2));
+        assertEquals(2, snapshot.size());
+        assertNull(cache.get(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.evictionCount());
+
+        time.set(8);
+        cache.put(3, "three"); //2 reaches the head expired
+        assertEquals("{3=three}", cache.toString());
+        assertEquals(2, cache.evictionCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void snapshotIsImmutable() {
+        PersistentCache<Integer, Integer> cache = new PersistentCache<>(2);
+        cache.put(1, 1);
+        PersistentCache.Snapshot<Integer, Integer> snapshot = cache.snapshot();
+        cache.put(2, 2);
+        cache.put(3, 3);
+        assertEquals(Integer.valueOf(1), snapshot.get(1));
+        assertNull(snapshot.get(2));
+        assertEquals("{1=1}", snapshot.toString());
+        assertEquals("{2=2, 3=3}", cache.toString());
+    }
+
+    @Test
+    public void parallelTest() throws InterruptedException {
+        PersistentCache<Integer, Integer> cache = new PersistentCache<>(50);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int shift = t * 1000;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    cache.put(shift + i % 100, i);
+                    cache.get(shift + (i + 50) % 100);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, cache.size());
+        assertEquals(50, cache.weight());
+        assertEquals(40000, cache.hitCount() + cache.missCount());
+        assertTrue(cache.evictionCount() >= 400 - 50);
+    }
+}
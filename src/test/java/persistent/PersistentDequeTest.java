@@ -0,0 +1,174 @@
+package persistent;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.junit.Test;
+
+public class PersistentDequeTest {
+
+    @Test
+    public void addAndGet() {
+        PersistentDeque<String> empty = new PersistentDeque<>();
+        PersistentDeque<String> a = empty.addFirst("a");
+        PersistentDeque<String> ab = a.addLast("b");
+        PersistentDeque<String> cab = ab.addFirst("c");
+        assertEquals("a", a.getFirst());
+        assertEquals("a", a.getLast());
+        assertEquals("c", cab.getFirst());
+        assertEquals("b", cab.getLast());
+        assertEquals("[c, a, b]", cab.toString());
+        assertEquals("[a, b]", ab.toString());
+        assertEquals(0, empty.size());
+        assertEquals(3, cab.size());
+    }
+
+    @Test
+    public void remove() {
+        PersistentDeque<Integer> deque = new PersistentDeque<>();
+        for (int i = 0; i < 10; i++) {
+            deque = deque.addLast(i);
+        }
+        PersistentDeque<Integer> removed = deque.removeFirst().removeLast().removeLast();
+        assertEquals("[1, 2, 3, 4, 5, 6, 7]", removed.toString());
+        assertEquals(Integer.valueOf(1), removed.getFirst());
+        assertEquals(Integer.valueOf(7), removed.getLast());
+        assertEquals(10, deque.size());
+        assertTrue(new PersistentDeque<Integer>().addFirst(1).removeLast().isEmpty());
+        assertTrue(new PersistentDeque<Integer>().addLast(1).removeFirst().isEmpty());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void removeFromEmpty() {
+        new PersistentDeque<Integer>().removeFirst();
+    }
+
+    @Test
+    public void bothEnds() {
+        Random random = new Random(11);
+        PersistentDeque<Integer> deque = new PersistentDeque<>();
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        for (int i = 0; i < 5000; i++) {
+            int action = random.nextInt(6);
+            if (action < 2) {
+                deque = deque.addFirst(i);
+                expected.addFirst(i);
+            } else if (action < 4) {
+                deque = deque.addLast(i);
+                expected.addLast(i);
+            } else if (!expected.isEmpty() && action == 4) {
+                deque = deque.removeFirst();
+                expected.removeFirst();
+            } else if (!expected.isEmpty()) {
+                deque = deque.removeLast();
+                expected.removeLast();
+            }
+            assertEquals(expected.size(), deque.size());
+            if (!expected.isEmpty()) {
+                assertEquals(expected.getFirst(), deque.getFirst());
+                assertEquals(expected.getLast(), deque.getLast());
+            }
+        }
+        Iterator<Integer> it = deque.iterator();
+        for (Integer element : expected) {
+            assertEquals(element, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void conversions() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<Integer>(1).addLast(1)
+            .addLast(2).addFirst(0).addLast(3);
+        PersistentDeque<Integer> deque = list.toPersistentDeque();
+        assertEquals("[0, 1, 2, 3]", deque.toString());
+        assertEquals(Integer.valueOf(0), deque.getFirst());
+        assertEquals(Integer.valueOf(3), deque.getLast());
+        assertEquals("[-1, 0, 1, 2, 3, 4]",
+            deque.addFirst(-1).addLast(4).toPersistentLinkedList(2).toString());
+        assertEquals("[]", new PersistentDeque<Integer>().toPersistentLinkedList(1).toString());
+    }
+
+    @Test(timeout = 5000)
+    public void largeConversion() {
+        LinkedList<Integer> elements = new LinkedList<>();
+        for (int i = 0; i < 200000; i++) {
+            elements.add(i);
+        }
+        PersistentDeque<Integer> deque = new PersistentDeque<>(elements);
+        assertEquals(200000, deque.size());
+        assertEquals(Integer.valueOf(0), deque.getFirst());
+        assertEquals(Integer.valueOf(199999), deque.getLast());
+        assertEquals(Integer.valueOf(1), deque.removeFirst().getFirst());
+        assertEquals(Integer.valueOf(199998), deque.removeLast().getLast());
+        assertEquals("[0, 1, 2]", new PersistentDeque<>(elements.subList(0, 3)).toString());
+    }
+
+    @Test(timeout = 2000)
+    public void reuseAtRebalanceThreshold() {
+        LinkedList<Integer> elements = new LinkedList<>();
+        for (int i = 0; i < 300000; i++) {
+            elements.add(i);
+        }
+        PersistentDeque<Integer> deque = new PersistentDeque<>(elements);
+        for (int i = 0; i < 100000; i++) {
+            deque = deque.removeFirst();
+        }
+        //the front has 50000 elements, the rear has 150000: the next removeFirst rebalances
+        for (int i = 0; i < 3000; i++) {
+            PersistentDeque<Integer> removed = deque.removeFirst();
+            assertEquals(Integer.valueOf(100001), removed.getFirst());
+            assertEquals(Integer.valueOf(299999), removed.getLast());
+            assertEquals(199999, removed.size());
+        }
+        PersistentDeque<Integer> removed = deque.removeFirst();
+        for (int i = 100001; i < 300000; i++) {
+            assertEquals(Integer.valueOf(i), removed.getFirst());
+            removed = removed.removeFirst();
+        }
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void reuseOldVersions() {
+        Random random = new Random(13);
+        ArrayList<PersistentDeque<Integer>> versions = new ArrayList<>();
+        ArrayList<ArrayDeque<Integer>> expectedVersions = new ArrayList<>();
+        versions.add(new PersistentDeque<>());
+        expectedVersions.add(new ArrayDeque<>());
+        for (int i = 0; i < 3000; i++) {
+            int version = random.nextInt(versions.size());
+            PersistentDeque<Integer> deque = versions.get(version);
+            ArrayDeque<Integer> expected = expectedVersions.get(version).clone();
+            int action = random.nextInt(6);
+            if (action < 2) {
+                deque = deque.addFirst(i);
+                expected.addFirst(i);
+            } else if (action < 4) {
+                deque = deque.addLast(i);
+                expected.addLast(i);
+            } else if (!expected.isEmpty() && action == 4) {
+                deque = deque.removeFirst();
+                expected.removeFirst();
+            } else if (!expected.isEmpty()) {
+                deque = deque.removeLast();
+                expected.removeLast();
+            }
+            assertEquals(expected.size(), deque.size());
+            if (!expected.isEmpty()) {
+                assertEquals(expected.getFirst(), deque.getFirst());
+                assertEquals(expected.getLast(), deque.getLast());
+            }
+            versions.add(deque);
+            expectedVersions.add(expected);
+        }
+        for (int i = 0; i < versions.size(); i += 100) {
+            assertEquals(expectedVersions.get(i).toString(), versions.get(i).toString());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class PersistentIntMapTest {
+
+    @Test
+    public void putGetRemove() {
+        PersistentIntMap<String> a = new PersistentIntMap<>();
+        PersistentIntMap<String> b = a.put(5, "five").put(-1, "minus one").put(3, "three");
+        PersistentIntMap<String> c = b.put(3, "THREE").remove(-1);
+        assertEquals("{-1=minus one, 3=three, 5=five}", b.toString());
+        assertEquals("{3=THREE, 5=five}", c.toString());
+        assertEquals("{}", a.toString());
+        assertEquals("three", b.get(3));
+        assertNull(c.get(-1));
+        assertTrue(b.containsKey(-1));
+        assertFalse(c.containsKey(-1));
+        assertSame(c, c.remove(4));
+        assertSame(c, c.put(5, "five"));
+        assertEquals(3, b.size());
+        assertEquals(-1, b.firstKey());
+        assertEquals(5, b.lastKey());
+    }
+
+    @Test
+    public void extremeKeys() {
+        PersistentIntMap<Integer> map = new PersistentIntMap<Integer>()
+            .put(Integer.MAX_VALUE, 1).put(Integer.MIN_VALUE, 2).put(0, 3).put(-1, 4);
+        assertEquals("{-2147483648=2, -1=4, 0=3, 2147483647=1}", map.toString());
+        assertEquals(Integer.valueOf(1), map.get(Integer.MAX_VALUE));
+        assertEquals(Integer.MIN_VALUE, map.firstKey());
+        assertEquals(Integer.MAX_VALUE, map.lastKey());
+        assertEquals("{-1=4, 0=3}", toString(map, Integer.MIN_VALUE + 1, Integer.MAX_VALUE));
+    }
+
+    private static String toString(PersistentIntMap<Integer> map, int fromKey, int toKey) {
+        StringBuilder out = new StringBuilder();
+        map.forEachInRange(fromKey, toKey, (key, value) -> {
+            if (out.length() != 0) {
+                out.append(", ");
+            }
+            out.append(key).append('=').append(value);
+        });
+        return "{" + out + "}";
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(44);
+        PersistentIntMap<Integer> map = new PersistentIntMap<>();
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(4000) - 2000;
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertEquals(expected.toString(), map.toString());
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < 200; i++) {
+            int from = random.nextInt(4200) - 2100;
+            int to = from + random.nextInt(300);
+            assertEquals(expected.subMap(from, to).toString(), toString(map, from, to));
+            ArrayList<Integer> keys = new ArrayList<>();
+            PrimitiveIterator.OfInt it = map.keyIterator(from, to);
+            while (it.hasNext()) {
+                keys.add(it.nextInt());
+            }
+            assertEquals(new ArrayList<>(expected.subMap(from, to).keySet()), keys);
+        }
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+import org.junit.Test;
+
+public class PersistentLinkedHashMapTest {
+
+    @Test
+    public void insertionOrder() {
+        PersistentLinkedHashMap<String, Integer> a = new PersistentLinkedHashMap<>();
+        PersistentLinkedHashMap<String, Integer> b = a.put("c", 3).put("a", 1).put("b", 2);
+        PersistentLinkedHashMap<String, Integer> c = b.put("c", 30).remove("a");
+        assertEquals("{c=3, a=1, b=2}", b.toString());
+        assertEquals("{c=30, b=2}", c.toString());
+        assertEquals("{}", a.toString());
+        assertEquals("c", b.firstKey());
+        assertEquals("b", b.lastKey());
+        assertEquals(Integer.valueOf(30), c.firstEntry().getValue());
+        assertNull(a.firstEntry());
+        assertSame(c, c.put("b", 2));
+        assertSame(c, c.remove("x"));
+        assertTrue(b.containsKey("a"));
+        assertFalse(c.containsKey("a"));
+        assertEquals(2, c.size());
+    }
+
+    @Test
+    public void reordering() {
+        PersistentLinkedHashMap<Integer, Integer> map = new PersistentLinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            map = map.put(i, i);
+        }
+        assertEquals("{1=1, 2=2, 3=3, 4=4, 0=0}", map.moveToLast(0).toString());
+        assertEquals("{0=0, 1=1, 3=3, 4=4, 2=20}", map.putLast(2, 20).toString());
+        assertEquals("{1=1, 2=2, 3=3, 4=4}", map.removeFirst().toString());
+        assertEquals(Integer.valueOf(1), map.removeFirst().firstKey());
+        assertEquals(Integer.valueOf(3), map.remove(4).lastKey());
+        assertSame(map, map.moveToLast(4));
+        assertEquals("{}", map.removeFirst().removeFirst().removeFirst().removeFirst()
+            .removeFirst().toString());
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(48);
+        PersistentLinkedHashMap<Integer, Integer> map = new PersistentLinkedHashMap<>(3);
+        LinkedHashMap<Integer, Integer> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(500);
+            int action = random.nextInt(4);
+            if (action == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else if (action == 1) {
+                map = map.putLast(key, i);
+                expected.remove(key);
+                expected.put(key, i);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertEquals(expected.toString(), map.toString());
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.keySet().iterator().next(), map.firstKey());
+        Integer lastKey = null;
+        for (Integer key : expected.keySet()) {
+            lastKey = key;
+        }
+        assertEquals(lastKey, map.lastKey());
+    }
+}
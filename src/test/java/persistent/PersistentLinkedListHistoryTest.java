@@ -2,6 +2,7 @@ package persistent;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import org.junit.Test;
 
 public class PersistentLinkedListHistoryTest {
@@ -46,4 +47,33 @@ public class PersistentLinkedListHistoryTest {
         assertEquals("[a, c]", v3Restored.toString());
 
     }
+
+    @Test
+    public void bulkOperations() {
+        PersistentLinkedListHistory<Integer> v1 = new PersistentLinkedListHistory<Integer>(2)
+            .addLast(1);
+        PersistentLinkedListHistory<Integer> v2 = v1.addAll(1, Arrays.asList(2, 3, 4, 5));
+        PersistentLinkedListHistory<Integer> v3 = v2.removeRange(0, 1);
+        PersistentLinkedListHistory<Integer> v4 = v3.removeIf(x -> x % 2 == 0);
+        PersistentLinkedListHistory<Integer> v5 = v4.concat(v2);
+        PersistentLinkedListHistory<Integer> v6 = v5.compact();
+        assertEquals("[3, 5, 1, 2, 3, 4, 5]", v6.toString());
+        assertEquals("[3, 5, 1, 2, 3, 4, 5]", v6.undo().toString());
+        assertEquals("[3, 5]", v6.undo().undo().toString());
+        assertEquals("[2, 3, 4, 5]", v6.undo().undo().undo().toString());
+        assertEquals("[1, 2, 3, 4, 5]", v6.undo().undo().undo().undo().toString());
+        assertEquals("[1]", v6.undo().undo().undo().undo().undo().toString());
+        assertEquals("[2, 3, 4, 5]", v3.undo().redo().toString());
+        assertSame(v4, v4.removeIf(x -> x > 10));
+        assertSame(v4, v4.removeRange(1, 1));
+        assertSame(v4, v4.addAll(0, Arrays.<Integer>asList()));
+
+        PersistentLinkedList.Split<Integer> split = v6.splitAt(2);
+        assertEquals("[3, 5]", split.left.toString());
+        assertEquals("[1, 2, 3, 4, 5]", split.right.toString());
+        assertEquals(v6.toString(),
+            ((PersistentLinkedListHistory<Integer>) split.left).undo().toString());
+        assertEquals(v6.toString(),
+            ((PersistentLinkedListHistory<Integer>) split.right).undo().toString());
+    }
 }
@@ -80,4 +80,30 @@ public class PersistentLinkedListParallelTest {
         }
     }
 
+    @Test
+    public void snapshotTest() throws InterruptedException {
+        PersistentLinkedListParallel<Integer> data = new PersistentLinkedListParallel<>(2);
+        data.addLast(0);
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i < 1000; i++) {
+                data.addLast(i);
+            }
+        });
+        writer.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            PersistentLinkedList<Integer> snapshot = data.snapshot();
+            int size = snapshot.size();
+            for (int i = 0; i < size; i++) {
+                assertEquals(Integer.valueOf(i), snapshot.get(i));
+            }
+            assertEquals(size, snapshot.size());
+        }
+        writer.join();
+
+        PersistentLinkedList<Integer> snapshot = data.snapshot();
+        data.addLast(1000);
+        assertEquals(1000, snapshot.size());
+        assertEquals(1001, data.size());
+    }
+
 }
@@ -3,8 +3,12 @@ package persistent;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 import persistent.PersistentLinkedList;
 import org.junit.Before;
 import org.junit.Test;
@@ -177,4 +181,437 @@ public class PersistentLinkedListTest {
         assertFalse(it.hasPrevious());
     }
 
+    @Test
+    public void positionalOperations() {
+        Random random = new Random(42);
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(2);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (expected.isEmpty() || random.nextInt(3) != 0) {
+                int listIndex = random.nextInt(expected.size() + 1);
+                list = list.add(listIndex, i);
+                expected.add(listIndex, i);
+            } else {
+                int listIndex = random.nextInt(expected.size());
+                list = list.remove(listIndex);
+                expected.remove(listIndex);
+            }
+        }
+
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), list.get(i));
+        }
+        assertEquals(expected.toString(), list.toString());
+    }
+
+    @Test
+    public void gapsAreSharedBetweenVersions() {
+        PersistentLinkedList<Integer> full = new PersistentLinkedList<>(1);
+        for (int i = 0; i < 8; i++) {
+            full = full.addLast(i);
+        }
+        PersistentLinkedList<Integer> holes = full.remove(1).remove(2).remove(3); // gaps 1, 3, 5
+        PersistentLinkedList<Integer> refilled = holes.addFirst(10).addFirst(11);
+
+        assertEquals(5, holes.size());
+        assertEquals(7, refilled.size());
+        assertEquals("[0, 2, 4, 6, 7]", holes.toString());
+        assertEquals("[11, 10, 0, 2, 4, 6, 7]", refilled.toString());
+        assertEquals("(((0, 10), (2, 11)), ((4, _), (6, 7)))", refilled.innerRepresentation());
+        assertEquals("(((0, 1), (2, 3)), ((4, 5), (6, 7)))", full.innerRepresentation());
+    }
+
+    @Test
+    public void editsCopyOnlyTouchedPaths() {
+        PersistentLinkedList<Integer> full = new PersistentLinkedList<>(1);
+        for (int i = 0; i < 8; i++) {
+            full = full.addLast(i);
+        }
+        PersistentLinkedList<Integer> inserted = full.add(2, 20); // writes only leaf 8
+        assertSame(full.root.get(0).get(1).get(1), inserted.root.get(0).get(0).get(1).get(1));
+        assertSame(full.root.get(1), inserted.root.get(0).get(1));
+        assertEquals("[0, 1, 20, 2, 3, 4, 5, 6, 7]", inserted.toString());
+
+        PersistentLinkedList<Integer> removed = full.remove(5); // writes only leaf 5
+        assertSame(full.root.get(0), removed.root.get(0));
+        assertSame(full.root.get(1).get(1).get(1), removed.root.get(1).get(1).get(1));
+        assertEquals("[0, 1, 2, 3, 4, 6, 7]", removed.toString());
+    }
+
+    @Test
+    public void compact() {
+        PersistentLinkedList<String> compacted = eac.compact();
+        assertEquals("((e, a), (c, _))", compacted.innerRepresentation());
+        assertEquals("[e, a, c]", compacted.toString());
+        assertEquals("((e, a), (c, wow))", compacted.toPersistentArray().add("wow").toString());
+        assertEquals("(((a, _), (c, _)), ((e, _), _))", eac.innerRepresentation());
+        assertEquals("[z, e, a, c]", compacted.addFirst("z").toString());
+        assertEquals("[]", empty.compact().toString());
+    }
+
+    @Test
+    public void automaticCompaction() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(2);
+        int size = PersistentLinkedList.COMPACTION_MIN_TREE_SIZE;
+        for (int i = 0; i < size; i++) {
+            list = list.addFirst(i);
+        }
+
+        PersistentArray<Integer> array = list.toPersistentArray();
+        assertEquals(size, array.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(Integer.valueOf(size - 1 - i), list.get(i));
+            assertEquals(list.get(i), array.get(i));
+        }
+    }
+
+    @Test
+    public void cursor() {
+        PersistentLinkedList.Cursor<String> cursor = dbeac.cursor(2);
+        assertEquals("e", cursor.get());
+        assertEquals("b", cursor.prev().get());
+        assertEquals("a", cursor.next().get());
+        assertEquals(3, cursor.next().index());
+        assertFalse(dbeac.cursor(0).hasPrevious());
+        assertFalse(dbeac.cursor(4).hasNext());
+
+        PersistentLinkedList.Cursor<String> x = cursor.insertBefore("x");
+        PersistentLinkedList.Cursor<String> y = x.insertAfter("y");
+        assertEquals("[d, b, x, y, e, a, c]", y.list().toString());
+        assertEquals(3, y.index());
+        assertEquals("e", y.next().get());
+
+        PersistentLinkedList.Cursor<String> removed = y.remove().remove();
+        assertEquals("[d, b, x, a, c]", removed.list().toString());
+        assertEquals("a", removed.get());
+        assertEquals("[d, b, x, a]", removed.next().remove().list().toString());
+        assertEquals("a", removed.next().remove().get());
+        assertEquals("[d, b, e, a, c]", dbeac.toString());
+        assertNull(a.cursor(0).remove());
+    }
+
+    @Test
+    public void cursorEdits() {
+        Random random = new Random(7);
+        PersistentLinkedList.Cursor<Integer> cursor = new PersistentLinkedList<Integer>(2)
+            .addFirst(-1).cursor(0);
+        ArrayList<Integer> expected = new ArrayList<>();
+        expected.add(-1);
+        for (int i = 0; i < 3000; i++) {
+            int action = random.nextInt(5);
+            if (action == 0 && cursor.hasNext()) {
+                cursor = cursor.next();
+            } else if (action == 1 && cursor.hasPrevious()) {
+                cursor = cursor.prev();
+            } else if (action == 2) {
+                expected.add(cursor.index(), i);
+                cursor = cursor.insertBefore(i);
+            } else if (action == 3) {
+                expected.add(cursor.index() + 1, i);
+                cursor = cursor.insertAfter(i);
+            } else if (expected.size() > 1) {
+                expected.remove(cursor.index());
+                cursor = cursor.remove();
+            }
+            assertEquals(expected.get(cursor.index()), cursor.get());
+        }
+        assertEquals(expected.toString(), cursor.list().toString());
+    }
+
+    @Test
+    public void cursorEditsOverConcatenatedList() {
+        Random random = new Random(11);
+        PersistentLinkedList<Integer> left = new PersistentLinkedList<>(1);
+        PersistentLinkedList<Integer> right = new PersistentLinkedList<>(1);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            left = left.addLast(i);
+            expected.add(i);
+        }
+        for (int i = 50; i < 100; i++) {
+            right = right.addLast(i);
+            expected.add(i);
+        }
+        PersistentLinkedList.Cursor<Integer> cursor = left.concat(right).cursor(40);
+        for (int i = 100; i < 5000; i++) {
+            int action = random.nextInt(5);
+            if (action == 0 && cursor.hasNext()) {
+                cursor = cursor.next();
+            } else if (action == 1 && cursor.hasPrevious()) {
+                cursor = cursor.prev();
+            } else if (action == 2) {
+                expected.add(cursor.index(), i);
+                cursor = cursor.insertBefore(i);
+            } else if (action == 3) {
+                expected.add(cursor.index() + 1, i);
+                cursor = cursor.insertAfter(i);
+            } else if (expected.size() > 1) {
+                expected.remove(cursor.index());
+                cursor = cursor.remove();
+            }
+            assertEquals(expected.get(cursor.index()), cursor.get());
+        }
+        assertEquals(expected.toString(), cursor.list().toString());
+    }
+
+    @Test
+    public void addAll() {
+        assertEquals("[d, b, x, y, z, e, a, c]",
+            dbeac.addAll(2, Arrays.asList("x", "y", "z")).toString());
+        assertEquals("[x, y, d, b, e, a, c]", dbeac.addAll(0, Arrays.asList("x", "y")).toString());
+        assertEquals("[d, b, e, a, c, x]", dbeac.addAll(5, Arrays.asList("x")).toString());
+        assertEquals("[x, y]", empty.addAll(0, Arrays.asList("x", "y")).toString());
+        assertEquals("[d, b, e, a, c]", dbeac.toString());
+
+        PersistentLinkedList<String> appended = ac.addAll(1, Arrays.asList("x", "y", "z"));
+        assertEquals("[a, x, y, z, c]", appended.toString());
+        assertEquals("(((a, _), (c, x)), ((y, z), _))", appended.innerRepresentation());
+        assertEquals("z", appended.get(3));
+        assertEquals("[a, x, y, z, c, w]", appended.addLast("w").toString());
+    }
+
+    @Test
+    public void removeRange() {
+        assertEquals("[d, a, c]", dbeac.removeRange(1, 3).toString());
+        assertEquals("[a, c]", dbeac.removeRange(0, 3).toString());
+        assertEquals("[d, b]", dbeac.removeRange(2, 5).toString());
+        assertEquals("[]", dbeac.removeRange(0, 5).toString());
+        assertEquals(0, dbeac.removeRange(0, 5).size());
+        assertEquals("[x]", dbeac.removeRange(0, 5).addLast("x").toString());
+        assertEquals("((a, b), (c, d))", dbeac.removeRange(2, 3).innerRepresentation());
+        assertEquals("[d, b, e, a, c]", dbeac.toString());
+        assertSame(dbeac, dbeac.removeRange(5, 5));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeRangeReversed() {
+        dbeac.removeRange(3, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeRangeNegative() {
+        dbeac.removeRange(-5, -10);
+    }
+
+    @Test
+    public void removeIf() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(2);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list = list.addFirst(i);
+            expected.add(0, i);
+        }
+        PersistentLinkedList<Integer> odd = list.removeIf(x -> x % 2 == 0);
+        expected.removeIf(x -> x % 2 == 0);
+        assertEquals(expected.toString(), odd.toString());
+        assertEquals(50, odd.size());
+        assertEquals(Integer.valueOf(99), odd.getFirst());
+        assertEquals(Integer.valueOf(1), odd.getLast());
+        assertEquals(Integer.valueOf(97), odd.get(1));
+        assertEquals(100, list.size());
+        assertEquals("[]", odd.removeIf(x -> true).toString());
+        assertEquals(0, odd.removeIf(x -> true).size());
+        assertEquals(odd.toString(), odd.removeIf(x -> x > 1000).toString());
+    }
+
+    @Test
+    public void concatAndSplit() {
+        PersistentLinkedList<Integer> left = new PersistentLinkedList<>(1);
+        PersistentLinkedList<Integer> right = new PersistentLinkedList<>(1);
+        for (int i = 0; i < 5; i++) {
+            left = left.addFirst(i);
+            right = right.addLast(10 + i);
+        }
+        PersistentLinkedList<Integer> joined = left.concat(right);
+        assertEquals("[4, 3, 2, 1, 0, 10, 11, 12, 13, 14]", joined.toString());
+        assertSame(left.root, joined.root);
+        assertEquals("[4, 3, 2, 1, 0]", left.toString());
+        assertEquals("[10, 11, 12, 13, 14]", right.toString());
+        assertEquals("[4, 3, 2, 1, 0, 4, 3, 2, 1, 0]", left.concat(left).toString());
+        PersistentLinkedList<Integer> none = new PersistentLinkedList<>(1);
+        assertEquals("[4, 3, 2, 1, 0]", none.concat(left).toString());
+        assertEquals("[4, 3, 2, 1, 0]", left.concat(none).toString());
+
+        PersistentLinkedList.Split<Integer> split = joined.splitAt(3);
+        assertEquals("[4, 3, 2]", split.left.toString());
+        assertEquals("[1, 0, 10, 11, 12, 13, 14]", split.right.toString());
+        assertEquals("[4, 3, 2, 7]", split.left.addLast(7).toString());
+        assertEquals("[1, 10, 11, 12, 13]", split.right.remove(1).removeLast().toString());
+        assertEquals("[]", joined.splitAt(0).left.toString());
+        assertEquals(joined.toString(), joined.splitAt(0).right.toString());
+        assertEquals("[]", joined.splitAt(10).right.toString());
+    }
+
+    @Test
+    public void splitToPersistentArray() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(2);
+        for (int i = 0; i < 6; i++) {
+            list = list.addLast(i);
+        }
+        PersistentLinkedList.Split<Integer> split = list.splitAt(2);
+        PersistentArray<Integer> left = split.left.toPersistentArray();
+        PersistentArray<Integer> right = split.right.toPersistentArray();
+        assertEquals(2, left.size());
+        assertEquals("(0, 1, _, _)", left.toString());
+        assertEquals(4, right.size());
+        assertEquals("(2, 3, 4, 5)", right.toString());
+        assertSame(list.root, list.toPersistentArray().root);
+    }
+
+    @Test(timeout = 2000)
+    public void concatAndSplitDoNotCompact() {
+        ArrayList<Integer> elements = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            elements.add(i);
+        }
+        PersistentLinkedList<Integer> big = new PersistentLinkedList<Integer>(5)
+            .addAll(0, elements);
+        PersistentLinkedList<Integer> small = new PersistentLinkedList<Integer>(5)
+            .addAll(0, elements.subList(0, 2000)).splitAt(10).left;
+        for (int i = 0; i < 300; i++) {
+            PersistentLinkedList<Integer> joined = small.concat(big);
+            assertEquals(200010, joined.size());
+            assertEquals(Integer.valueOf(9), joined.get(9));
+            assertEquals(Integer.valueOf(0), joined.get(10));
+            assertSame(small.root, joined.root); //not compacted
+        }
+
+        PersistentLinkedList<Integer> left = big.splitAt(80000).left;
+        for (int i = 0; i < 300; i++) {
+            PersistentLinkedList<Integer> edited = left.add(0, -1);
+            assertEquals(80001, edited.size());
+            assertEquals(Integer.valueOf(-1), edited.get(0));
+            assertEquals(Integer.valueOf(79999), edited.getLast());
+            assertSame(big.root.get(0), edited.root.get(0)); //not compacted
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void concatDifferentBranchingFactors() {
+        new PersistentLinkedList<Integer>(1).addLast(1)
+            .concat(new PersistentLinkedList<Integer>(2).addLast(2));
+    }
+
+    @Test
+    public void concatAndSplitRandomly() {
+        Random random = new Random(5);
+        for (int power = 1; power <= 3; power++) {
+            ArrayList<PersistentLinkedList<Integer>> lists = new ArrayList<>();
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<>();
+            lists.add(new PersistentLinkedList<>(power));
+            expected.add(new ArrayList<>());
+            for (int i = 0; i < 400; i++) {
+                int from = random.nextInt(lists.size());
+                PersistentLinkedList<Integer> list = lists.get(from);
+                ArrayList<Integer> values = new ArrayList<>(expected.get(from));
+                int action = random.nextInt(5);
+                if (action == 0) {
+                    int other = random.nextInt(lists.size());
+                    list = list.concat(lists.get(other));
+                    values.addAll(expected.get(other));
+                } else if (action == 1) {
+                    int listIndex = random.nextInt(values.size() + 1);
+                    PersistentLinkedList.Split<Integer> split = list.splitAt(listIndex);
+                    list = random.nextBoolean() ? split.left : split.right;
+                    values = new ArrayList<>(split.left == list
+                        ? values.subList(0, listIndex) : values.subList(listIndex, values.size()));
+                } else if (action == 2 && !values.isEmpty()) {
+                    int listIndex = random.nextInt(values.size());
+                    list = list.remove(listIndex);
+                    values.remove(listIndex);
+                } else {
+                    int listIndex = random.nextInt(values.size() + 1);
+                    list = list.add(listIndex, i);
+                    values.add(listIndex, i);
+                }
+                lists.add(list);
+                expected.add(values);
+                assertEquals(values.size(), list.size());
+                assertEquals(values.toString(), list.toString());
+                assertEquals(values, list.stream().collect(Collectors.toList()));
+                if (!values.isEmpty()) {
+                    int listIndex = random.nextInt(values.size());
+                    assertEquals(values.get(listIndex), list.get(listIndex));
+                    assertEquals(values.get(0), list.getFirst());
+                    assertEquals(values.get(values.size() - 1), list.getLast());
+                }
+                assertEquals(values.toString(), list.compact().toString());
+            }
+        }
+    }
+
+    @Test
+    public void bulkOperations() {
+        Random random = new Random(3);
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(1);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            int action = random.nextInt(4);
+            if (action == 0) {
+                int listIndex = random.nextInt(expected.size() + 1);
+                ArrayList<Integer> data = new ArrayList<>();
+                for (int j = random.nextInt(20); j > 0; j--) {
+                    data.add(random.nextInt(1000));
+                }
+                list = list.addAll(listIndex, data);
+                expected.addAll(listIndex, data);
+            } else if (action == 1) {
+                int fromIndex = random.nextInt(expected.size() + 1);
+                int toIndex = fromIndex + random.nextInt(expected.size() - fromIndex + 1);
+                list = list.removeRange(fromIndex, toIndex);
+                expected.subList(fromIndex, toIndex).clear();
+            } else if (action == 2) {
+                int divisor = random.nextInt(10) + 2;
+                list = list.removeIf(x -> x % divisor == 0);
+                expected.removeIf(x -> x % divisor == 0);
+            } else {
+                int listIndex = random.nextInt(expected.size() + 1);
+                list = list.add(listIndex, i);
+                expected.add(listIndex, i);
+            }
+            assertEquals(expected.size(), list.size());
+            assertEquals(expected.toString(), list.toString());
+            if (!expected.isEmpty()) {
+                assertEquals(expected.get(0), list.getFirst());
+                assertEquals(expected.get(expected.size() - 1), list.getLast());
+            }
+        }
+        ListIterator<Integer> it = list.iterator();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), list.get(i));
+            assertEquals(expected.get(i), it.next());
+        }
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertEquals(expected.get(i), it.previous());
+        }
+    }
+
+    @Test
+    public void stream() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(2);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list = list.add(i % 3 == 0 ? 0 : list.size(), i);
+            expected.add(i % 3 == 0 ? 0 : expected.size(), i);
+        }
+        assertEquals(expected, list.stream().collect(Collectors.toList()));
+        assertEquals(expected, list.parallelStream().collect(Collectors.toList()));
+        assertEquals(expected.stream().mapToLong(x -> x).sum(),
+            list.parallelStream().mapToLong(x -> x).sum());
+        assertEquals(0, empty.stream().count());
+
+        Spliterator<Integer> suffix = list.spliterator();
+        Spliterator<Integer> prefix = suffix.trySplit();
+        assertEquals(500, prefix.estimateSize());
+        assertEquals(500, suffix.estimateSize());
+        suffix.tryAdvance(x -> assertEquals(expected.get(500), x));
+    }
+
+    @Test
+    public void toLinkedList() {
+        assertEquals(Arrays.asList("d", "b", "e", "a", "c"), dbeac.toLinkedList());
+        assertTrue(empty.toLinkedList().isEmpty());
+        assertFalse(empty.iterator().hasNext());
+    }
 }
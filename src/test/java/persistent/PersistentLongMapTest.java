@@ -0,0 +1,91 @@
+package persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class PersistentLongMapTest {
+
+    @Test
+    public void putGetRemove() {
+        PersistentLongMap<String> a = new PersistentLongMap<>();
+        PersistentLongMap<String> b = a.put(5, "five").put(-1, "minus one").put(3, "three");
+        PersistentLongMap<String> c = b.put(3, "THREE").remove(-1);
+        assertEquals("{-1=minus one, 3=three, 5=five}", b.toString());
+        assertEquals("{3=THREE, 5=five}", c.toString());
+        assertEquals("{}", a.toString());
+        assertEquals("three", b.get(3));
+        assertNull(c.get(-1));
+        assertTrue(b.containsKey(-1));
+        assertFalse(c.containsKey(-1));
+        assertSame(c, c.remove(4));
+        assertSame(c, c.put(5, "five"));
+        assertEquals(3, b.size());
+        assertEquals(-1, b.firstKey());
+        assertEquals(5, b.lastKey());
+    }
+
+    @Test
+    public void extremeKeys() {
+        PersistentLongMap<Integer> map = new PersistentLongMap<Integer>()
+            .put(Long.MAX_VALUE, 1).put(Long.MIN_VALUE, 2).put(0, 3).put(-1, 4);
+        assertEquals("{-9223372036854775808=2, -1=4, 0=3, 9223372036854775807=1}", map.toString());
+        assertEquals(Integer.valueOf(1), map.get(Long.MAX_VALUE));
+        assertEquals(Long.MIN_VALUE, map.firstKey());
+        assertEquals(Long.MAX_VALUE, map.lastKey());
+        assertEquals("{-1=4, 0=3}", toString(map, Long.MIN_VALUE + 1, Long.MAX_VALUE));
+    }
+
+    private static String toString(PersistentLongMap<Integer> map, long fromKey, long toKey) {
+        StringBuilder out = new StringBuilder();
+        map.forEachInRange(fromKey, toKey, (key, value) -> {
+            if (out.length() != 0) {
+                out.append(", ");
+            }
+            out.append(key).append('=').append(value);
+        });
+        return "{" + out + "}";
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(45);
+        PersistentLongMap<Integer> map = new PersistentLongMap<>();
+        TreeMap<Long, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(4000) - 2000 + ((long) random.nextInt(4) << 40);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertEquals(expected.toString(), map.toString());
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < 200; i++) {
+            long from = random.nextInt(4200) - 2100 + ((long) random.nextInt(4) << 40);
+            long to = from + random.nextInt(300);
+            assertEquals(expected.subMap(from, to).toString(), toString(map, from, to));
+            ArrayList<Long> keys = new ArrayList<>();
+            PrimitiveIterator.OfLong it = map.keyIterator(from, to);
+            while (it.hasNext()) {
+                keys.add(it.nextLong());
+            }
+            assertEquals(new ArrayList<>(expected.subMap(from, to).keySet()), keys);
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class PersistentSortedMapTest {
+
+    @Test
+    public void putGetRemove() {
+        PersistentSortedMap<Integer, String> a = new PersistentSortedMap<>();
+        PersistentSortedMap<Integer, String> b = a.put(5, "five").put(1, "one").put(3, "three");
+        PersistentSortedMap<Integer, String> c = b.put(3, "THREE").remove(1);
+        assertEquals("{1=one, 3=three, 5=five}", b.toString());
+        assertEquals("{3=THREE, 5=five}", c.toString());
+        assertEquals("{}", a.toString());
+        assertEquals("three", b.get(3));
+        assertNull(c.get(1));
+        assertTrue(b.containsKey(1));
+        assertFalse(c.containsKey(1));
+        assertSame(c, c.remove(4));
+        assertSame(c, c.put(5, "five"));
+        assertEquals(3, b.size());
+    }
+
+    @Test
+    public void navigation() {
+        PersistentSortedMap<Integer, Integer> map = new PersistentSortedMap<>();
+        for (int i = 0; i < 100; i += 10) {
+            map = map.put(i, i);
+        }
+        assertEquals(Integer.valueOf(0), map.firstKey());
+        assertEquals(Integer.valueOf(90), map.lastKey());
+        assertEquals(Integer.valueOf(40), map.floorKey(45));
+        assertEquals(Integer.valueOf(40), map.floorKey(40));
+        assertEquals(Integer.valueOf(50), map.ceilingKey(45));
+        assertEquals(Integer.valueOf(30), map.lowerKey(40));
+        assertEquals(Integer.valueOf(50), map.higherKey(40));
+        assertNull(map.floorKey(-1));
+        assertNull(map.ceilingKey(91));
+        assertEquals(4, map.rank(40));
+        assertEquals(5, map.rank(45));
+        assertEquals(Integer.valueOf(70), map.select(7));
+    }
+
+    @Test
+    public void ranges() {
+        PersistentSortedMap<Integer, Integer> map = new PersistentSortedMap<>();
+        for (int i = 0; i < 10; i++) {
+            map = map.put(i, i * i);
+        }
+        assertEquals("{3=9, 4=16, 5=25}", map.subMap(3, 6).toString());
+        assertEquals("{0=0, 1=1}", map.headMap(2).toString());
+        assertEquals("{8=64, 9=81}", map.tailMap(8).toString());
+        assertEquals("{}", map.subMap(4, 4).toString());
+        assertEquals(10, map.size());
+        assertEquals("{5=25, 6=36}", map.tailMap(5).headMap(7).toString());
+    }
+
+    @Test
+    public void comparator() {
+        PersistentSortedMap<String, Integer> map = new PersistentSortedMap<>(
+            Comparator.reverseOrder());
+        map = map.put("a", 1).put("c", 3).put("b", 2);
+        assertEquals("{c=3, b=2, a=1}", map.toString());
+        assertEquals("c", map.firstKey());
+        assertEquals("{b=2}", map.subMap("b", "a").toString());
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(38);
+        PersistentSortedMap<Integer, Integer> map = new PersistentSortedMap<>();
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertEquals(expected.toString(), map.toString());
+        for (int i = 0; i < 200; i++) {
+            int from = random.nextInt(2100) - 50;
+            int to = from + random.nextInt(300);
+            assertEquals(expected.subMap(from, to).toString(), map.subMap(from, to).toString());
+            assertEquals(expected.floorKey(from), map.floorKey(from));
+            assertEquals(expected.ceilingKey(to), map.ceilingKey(to));
+            assertEquals(expected.headMap(from).size(), map.rank(from));
+        }
+        Iterator<Map.Entry<Integer, Integer>> it = map.iterator();
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+}
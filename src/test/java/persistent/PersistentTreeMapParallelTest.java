@@ -0,0 +1,67 @@
+package persistent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PersistentTreeMapParallelTest {
+
+    @Test
+    public void operations() {
+        PersistentTreeMapParallel<Integer, String> map = new PersistentTreeMapParallel<>(2, 1);
+        assertNull(map.put(1, "one"));
+        assertEquals("one", map.put(1, "ONE"));
+        assertEquals("ONE", map.putIfAbsent(1, "one"));
+        assertNull(map.putIfAbsent(2, "two"));
+        assertEquals("two!", map.merge(2, "!", String::concat));
+        assertEquals("3", map.compute(3, (key, value) -> value == null ? "3" : value + key));
+        assertNull(map.compute(3, (key, value) -> null));
+        assertEquals("ONE", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        assertEquals("two!", map.get(2));
+        assertFalse(map.containsKey(3));
+
+        PersistentTreeMap<Integer, String> snapshot = map.snapshot();
+        map.put(4, "four");
+        assertEquals(1, snapshot.size());
+        assertEquals("two!", snapshot.get(2));
+        assertEquals(2, map.snapshot().size());
+        assertEquals("four", map.snapshot().get(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyShards() {
+        new PersistentTreeMapParallel<Integer, Integer>(2, 3);
+    }
+
+    @Test
+    public void parallelTest() throws InterruptedException {
+        PersistentTreeMapParallel<Integer, Integer> map = new PersistentTreeMapParallel<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    map.merge(i % 100, 1, Integer::sum);
+                }
+            });
+            threads[t].start();
+        }
+        int previousSize = 0;
+        for (int i = 0; i < 100; i++) {
+            PersistentTreeMap<Integer, Integer> snapshot = map.snapshot();
+            assertTrue(snapshot.size() >= previousSize);
+            previousSize = snapshot.size();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        PersistentTreeMap<Integer, Integer> snapshot = map.snapshot();
+        assertEquals(100, snapshot.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(400), snapshot.get(i));
+            assertEquals(Integer.valueOf(400), map.get(i));
+        }
+    }
+}
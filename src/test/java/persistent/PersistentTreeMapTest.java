@@ -2,6 +2,17 @@ package persistent;
 
 import static org.junit.Assert.*;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 import org.junit.Test;
 
 public class PersistentTreeMapTest {
@@ -32,6 +43,27 @@ public class PersistentTreeMapTest {
         }
     }
 
+    private static class CountingKey {
+
+        static int equalsCalls = 0;
+        final int hash;
+
+        CountingKey(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            equalsCalls++;
+            return o instanceof CountingKey && ((CountingKey) o).hash == hash;
+        }
+    }
+
     private class NegativeObject {
 
         @Override
@@ -118,4 +150,442 @@ public class PersistentTreeMapTest {
         assertFalse(aa.containsKey(key6));
         assertFalse(aa.containsKey(key9));
     }
+
+    @Test
+    public void trieGrowsOnDemand() {
+        PersistentTreeMap<Integer, String> a = new PersistentTreeMap<>(2);
+        PersistentTreeMap<Integer, String> b = a.put(1, "one").put(2, "two");
+        assertEquals("(_, one, two, _)", b.toString());
+        assertEquals(4, b.root.content.length);
+        PersistentTreeMap<Integer, String> c = b.put(5, "five");
+        assertEquals("(_, (one, five, _, _), two, _)", c.toString());
+        assertEquals("(_, one, two, _)", c.remove(5).toString());
+        assertEquals(2, c.remove(5).size());
+        assertSame(c, c.remove(9));
+        assertSame(c, c.put(5, "five"));
+    }
+
+    @Test
+    public void putReplacesValue() {
+        PersistentTreeMap<String, Integer> a = new PersistentTreeMap<String, Integer>().put("x", 1);
+        PersistentTreeMap<String, Integer> b = a.put("x", 2);
+        assertEquals(Integer.valueOf(1), a.get("x"));
+        assertEquals(Integer.valueOf(2), b.get("x"));
+        assertEquals(1, b.size());
+    }
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(37);
+        for (int power = 1; power <= 5; power += 2) {
+            PersistentTreeMap<Integer, Integer> map = new PersistentTreeMap<>(power);
+            Map<Integer, Integer> expected = new HashMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int key = random.nextInt(3000) - 1500;
+                if (random.nextInt(3) == 0) {
+                    map = map.remove(key);
+                    expected.remove(key);
+                } else {
+                    map = map.put(key, i);
+                    expected.put(key, i);
+                }
+            }
+            assertEquals(expected.size(), map.size());
+            for (int key = -1500; key < 1500; key++) {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+        }
+    }
+
+    @Test
+    public void removeCollisions() {
+        Object1 object1 = new Object1();
+        Object2 object2 = new Object2();
+        PersistentTreeMap<Object, Integer> a = new PersistentTreeMap<>(3);
+        PersistentTreeMap<Object, Integer> b = a.put(object1, 100).put(object2, 200).put(7, 700);
+        assertEquals(3, b.size());
+        PersistentTreeMap<Object, Integer> c = b.remove(object1);
+        assertFalse(c.containsKey(object1));
+        assertEquals(Integer.valueOf(200), c.get(object2));
+        assertEquals(a.put(object2, 200).put(7, 700).toString(), c.toString());
+        assertEquals(0, c.remove(object2).remove(7).size());
+    }
+
+    @Test
+    public void putReplacesCollidingValue() {
+        Object1 object1 = new Object1();
+        Object2 object2 = new Object2();
+        PersistentTreeMap<Object, Integer> a = new PersistentTreeMap<Object, Integer>(1)
+            .put(object1, 100).put(object2, 200);
+        PersistentTreeMap<Object, Integer> b = a.put(object1, 300).put(object2, 400);
+        assertEquals(Integer.valueOf(100), a.get(object1));
+        assertEquals(Integer.valueOf(300), b.get(object1));
+        assertEquals(Integer.valueOf(400), b.get(object2));
+        assertEquals(2, b.size());
+    }
+
+    @Test
+    public void keysAreComparedOnlyOnHashMatch() {
+        CountingKey low = new CountingKey(0x00000001);
+        CountingKey high = new CountingKey(0x80000001); //same chunks except the last one
+        PersistentTreeMap<CountingKey, String> a = new PersistentTreeMap<CountingKey, String>(1)
+            .put(low, "low");
+        CountingKey.equalsCalls = 0;
+        assertNull(a.get(high));
+        PersistentTreeMap<CountingKey, String> b = a.put(high, "high");
+        assertEquals("high", b.get(high));
+        assertEquals("low", b.get(low));
+        assertEquals(2, CountingKey.equalsCalls);
+    }
+
+    @Test
+    public void iteration() {
+        PersistentTreeMap<Integer, Integer> map = new PersistentTreeMap<>(2);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put(i * 7919, i);
+            expected.put(i * 7919, i);
+        }
+        Map<Integer, Integer> entries = new HashMap<>();
+        Iterator<Map.Entry<Integer, Integer>> it = map.entryIterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Integer> entry = it.next();
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, entries);
+
+        HashSet<Integer> keys = new HashSet<>();
+        map.keys().forEachRemaining(keys::add);
+        assertEquals(expected.keySet(), keys);
+        ArrayList<Integer> values = new ArrayList<>();
+        map.values().forEachRemaining(values::add);
+        assertEquals(1000, values.size());
+        assertEquals(499500, values.stream().mapToInt(x -> x).sum());
+
+        Map<Integer, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+        assertFalse(new PersistentTreeMap<Integer, Integer>().entryIterator().hasNext());
+    }
+
+    @Test
+    public void parallelStream() {
+        PersistentTreeMap<Integer, Integer> map = new PersistentTreeMap<>();
+        for (int i = 0; i < 100000; i++) {
+            map = map.put(i, i);
+        }
+        assertEquals(4999950000L, map.parallelStream().mapToLong(Map.Entry::getValue).sum());
+        assertEquals(100000, map.parallelStream().map(Map.Entry::getKey)
+            .collect(Collectors.toSet()).size());
+
+        Spliterator<Map.Entry<Integer, Integer>> right = map.spliterator();
+        Spliterator<Map.Entry<Integer, Integer>> left = right.trySplit();
+        int[] counts = new int[2];
+        left.forEachRemaining(entry -> counts[0]++);
+        right.forEachRemaining(entry -> counts[1]++);
+        assertTrue(counts[0] > 0 && counts[1] > 0);
+        assertEquals(100000, counts[0] + counts[1]);
+    }
+
+    @Test
+    public void putAllAndRemoveAll() {
+        Random random = new Random(41);
+        for (int power = 1; power <= 5; power += 2) {
+            PersistentTreeMap<Integer, Integer> map = new PersistentTreeMap<>(power);
+            for (int i = 0; i < 500; i++) {
+                map = map.put(i, i);
+            }
+            Map<Integer, Integer> batch = new HashMap<>();
+            for (int i = 0; i < 5000; i++) {
+                batch.put(random.nextInt(10000), i);
+            }
+            PersistentTreeMap<Integer, Integer> loaded = map.putAll(batch);
+            Map<Integer, Integer> expected = new HashMap<>();
+            map.forEach(expected::put);
+            expected.putAll(batch);
+            assertEquals(expected.size(), loaded.size());
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), loaded.get(entry.getKey()));
+            }
+            assertEquals(500, map.size());
+            assertEquals(Integer.valueOf(7), map.get(7));
+
+            PersistentTreeMap<Integer, Integer> removed = loaded.removeAll(batch.keySet());
+            expected.keySet().removeAll(batch.keySet());
+            assertEquals(expected.size(), removed.size());
+            for (int key = 0; key < 10000; key++) {
+                assertEquals(expected.get(key), removed.get(key));
+            }
+            assertEquals(map.remove(3).put(3, 3).toString(), map.toString());
+        }
+    }
+
+    @Test
+    public void builder() {
+        PersistentTreeMap<String, Integer> empty = new PersistentTreeMap<>(2);
+        PersistentTreeMap.Builder<String, Integer> builder = empty.toBuilder();
+        builder.put("a", 1).put("b", 2).put("c", 3).remove("b").remove("z");
+        assertEquals(2, builder.size());
+        PersistentTreeMap<String, Integer> first = builder.build();
+        builder.put("a", 10).put("d", 4);
+        PersistentTreeMap<String, Integer> second = builder.build();
+        assertEquals(Integer.valueOf(1), first.get("a"));
+        assertFalse(first.containsKey("d"));
+        assertEquals(Integer.valueOf(10), second.get("a"));
+        assertEquals(3, second.size());
+        assertEquals(0, empty.size());
+        assertSame(empty, empty.toBuilder().remove("a").build());
+        assertSame(first, first.putAll(Arrays.asList(
+            new AbstractMap.SimpleImmutableEntry<>("a", first.get("a")))));
+    }
+
+    private static Map<Object, Integer> toHashMap(PersistentTreeMap<Object, Integer> map) {
+        Map<Object, Integer> out = new HashMap<>();
+        map.forEach(out::put);
+        assertEquals(out.size(), map.size());
+        return out;
+    }
+
+    @Test
+    public void setOperations() {
+        Random random = new Random(42);
+        for (int power = 1; power <= 5; power += 2) {
+            PersistentTreeMap<Object, Integer> base = new PersistentTreeMap<>(power);
+            for (int i = 0; i < 2000; i++) {
+                base = base.put(random.nextInt(5000), i);
+            }
+            base = base.put(new Object1(), 1).put(new Object2(), 2);
+            PersistentTreeMap<Object, Integer> left = base;
+            PersistentTreeMap<Object, Integer> right = base;
+            for (int i = 0; i < 300; i++) {
+                left = random.nextBoolean() ? left.put(random.nextInt(6000), -i)
+                    : left.remove(random.nextInt(6000));
+                right = random.nextBoolean() ? right.put(random.nextInt(6000), i)
+                    : right.remove(random.nextInt(6000));
+            }
+            right = right.remove(new Object1());
+
+            Map<Object, Integer> l = toHashMap(left);
+            Map<Object, Integer> r = toHashMap(right);
+            Map<Object, Integer> merged = new HashMap<>(l);
+            r.forEach((key, value) -> merged.merge(key, value, Integer::sum));
+            Map<Object, Integer> merge = toHashMap(left.merge(right, (x, y) -> x + y));
+            for (Object key : merged.keySet()) {
+                Integer expected = l.get(key) == r.get(key) ? l.get(key) : merged.get(key);
+                assertEquals(expected, merge.get(key));
+            }
+            assertEquals(merged.size(), merge.size());
+
+            Map<Object, Integer> union = new HashMap<>(l);
+            union.putAll(r);
+            assertEquals(union, toHashMap(left.union(right)));
+            Map<Object, Integer> intersection = new HashMap<>(l);
+            intersection.keySet().retainAll(r.keySet());
+            assertEquals(intersection, toHashMap(left.intersect(right)));
+            Map<Object, Integer> difference = new HashMap<>(l);
+            difference.keySet().removeAll(r.keySet());
+            assertEquals(difference, toHashMap(left.difference(right)));
+        }
+    }
+
+    @Test
+    public void setOperationsShareStructure() {
+        PersistentTreeMap<Integer, Integer> base = new PersistentTreeMap<>();
+        for (int i = 0; i < 10000; i++) {
+            base = base.put(i, i);
+        }
+        PersistentTreeMap<Integer, Integer> changed = base.put(5, -5);
+        assertSame(base, base.union(base));
+        assertSame(base, base.intersect(base));
+        assertSame(changed, base.union(changed));
+        assertSame(base, base.intersect(changed));
+        assertEquals(0, base.difference(base).size());
+        assertEquals(1, changed.difference(base.remove(5)).size());
+        PersistentTreeMap<Integer, Integer> merged = base.put(10001, 1)
+            .merge(changed, (x, y) -> x + y);
+        assertEquals(Integer.valueOf(0), merged.get(5));
+        assertEquals(10001, merged.size());
+        int shared = 0;
+        for (int i = 0; i < Integer.bitCount(base.root.nodeMap); i++) {
+            if (merged.root.node(i) == base.root.node(i)) {
+                shared++;
+            }
+        }
+        assertEquals(Integer.bitCount(base.root.nodeMap) - 2, shared);
+    }
+
+    @Test
+    public void merge3() {
+        Random random = new Random(43);
+        for (int round = 0; round < 50; round++) {
+            PersistentTreeMap<Object, Integer> base = new PersistentTreeMap<>(1 + round % 5);
+            for (int i = 0; i < 300; i++) {
+                base = base.put(random.nextInt(500), i);
+            }
+            base = base.put(new Object1(), 1).put(new Object2(), 2);
+            PersistentTreeMap<Object, Integer> left = base.put(new Object1(), round);
+            PersistentTreeMap<Object, Integer> right = round % 2 == 0 ? base
+                : base.put(new Object1(), -round).remove(new Object2());
+            for (int i = 0; i < 30; i++) {
+                int key = random.nextInt(500);
+                if (random.nextBoolean()) {
+                    left = random.nextInt(3) == 0 ? left.remove(key) : left.put(key, i);
+                } else {
+                    right = random.nextInt(3) == 0 ? right.remove(key) : right.put(key, -i);
+                }
+            }
+
+            Map<Object, Integer> b = toHashMap(base);
+            Map<Object, Integer> l = toHashMap(left);
+            Map<Object, Integer> r = toHashMap(right);
+            Map<Object, Integer> expected = new HashMap<>();
+            HashSet<Object> keys = new HashSet<>(b.keySet());
+            keys.addAll(l.keySet());
+            keys.addAll(r.keySet());
+            int conflicts = 0;
+            for (Object key : keys) {
+                Integer value;
+                if (Objects.equals(l.get(key), r.get(key))
+                    || Objects.equals(r.get(key), b.get(key))) {
+                    value = l.get(key);
+                } else if (Objects.equals(l.get(key), b.get(key))) {
+                    value = r.get(key);
+                } else {
+                    value = r.get(key);
+                    conflicts++;
+                }
+                if (value != null) {
+                    expected.put(key, value);
+                }
+            }
+
+            int[] calls = new int[1];
+            PersistentTreeMap<Object, Integer> merged = PersistentTreeMap.merge3(base, left, right,
+                (key, x, y, z) -> {
+                    calls[0]++;
+                    return z;
+                });
+            assertEquals(expected, toHashMap(merged));
+            assertEquals(expected.size(), merged.size());
+            assertEquals(conflicts, calls[0]);
+        }
+    }
+
+    @Test
+    public void merge3SharesStructure() {
+        PersistentTreeMap<Integer, Integer> base = new PersistentTreeMap<>();
+        for (int i = 0; i < 10000; i++) {
+            base = base.put(i, i);
+        }
+        PersistentTreeMap<Integer, Integer> left = base.put(1, -1);
+        PersistentTreeMap<Integer, Integer> right = base.remove(2).put(20000, 0);
+        assertSame(left, PersistentTreeMap.merge3(base, left, base, ConflictPolicy.fail()));
+        assertSame(right, PersistentTreeMap.merge3(base, base, right, ConflictPolicy.fail()));
+        PersistentTreeMap<Integer, Integer> merged = PersistentTreeMap.merge3(base, left, right,
+            ConflictPolicy.fail());
+        assertEquals(Integer.valueOf(-1), merged.get(1));
+        assertFalse(merged.containsKey(2));
+        assertEquals(10000, merged.size());
+        int shared = 0;
+        for (int i = 0; i < Integer.bitCount(base.root.nodeMap); i++) {
+            if (merged.root.node(i) == base.root.node(i)) {
+                shared++;
+            }
+        }
+        assertEquals(Integer.bitCount(base.root.nodeMap) - 3, shared);
+
+        try {
+            PersistentTreeMap.merge3(base, left, base.put(1, 2), ConflictPolicy.fail());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Conflicting changes of 1", e.getMessage());
+        }
+        assertEquals(Integer.valueOf(-1),
+            PersistentTreeMap.merge3(base, left, base.put(1, 2), ConflictPolicy.preferLeft())
+                .get(1));
+    }
+
+    @Test
+    public void hashStrategies() {
+        //the keys sharing the low 10 bits
+        PersistentTreeMap<Integer, Integer> identity = new PersistentTreeMap<>(5);
+        PersistentTreeMap<Integer, Integer> murmur = new PersistentTreeMap<>(5,
+            HashStrategy.MURMUR);
+        PersistentTreeMap<Integer, Integer> seeded = new PersistentTreeMap<>(5,
+            HashStrategy.seeded(46));
+        for (int i = 0; i < 1000; i++) {
+            identity = identity.put(i << 10, i);
+            murmur = murmur.put(i << 10, i);
+            seeded = seeded.put(i << 10, i);
+        }
+        assertEquals(1000, murmur.size());
+        assertEquals(Integer.valueOf(7), murmur.get(7 << 10));
+        assertEquals(Integer.valueOf(7), seeded.get(7 << 10));
+        assertNull(seeded.get(7));
+        assertArrayEquals(new int[]{0, 0, 0, 1000}, identity.depthHistogram());
+        assertTrue(murmur.depthHistogram()[1] > 300);
+        assertTrue(seeded.depthHistogram()[1] > 300);
+        assertEquals(1000, Arrays.stream(murmur.depthHistogram()).sum());
+        assertEquals(HashStrategy.mix(5), HashStrategy.MURMUR.hash(5));
+
+        try {
+            identity.union(murmur);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Hash strategies are different", e.getMessage());
+        }
+    }
+
+    @Test
+    public void bucketHistogram() {
+        PersistentTreeMap<Object, Integer> map = new PersistentTreeMap<>(2);
+        assertArrayEquals(new int[]{0}, map.bucketHistogram());
+        assertEquals(0, map.maxChainLength());
+        map = map.put(1, 1).put(2, 2).put(3, 3).put(new Object1(), 4).put(new Object2(), 5);
+        assertArrayEquals(new int[]{0, 3, 1}, map.bucketHistogram());
+        assertEquals(2, map.maxChainLength());
+        assertArrayEquals(new int[]{2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2},
+            map.depthHistogram());
+    }
+
+    @Test
+    public void compute() {
+        PersistentTreeMap<Object, Integer> map = new PersistentTreeMap<>(2);
+        map = map.put(1, 1).put(new Object1(), 10).put(new Object2(), 20);
+        assertSame(map, map.compute(1, (key, value) -> value));
+        assertSame(map, map.computeIfAbsent(1, key -> 5));
+        assertSame(map, map.computeIfPresent(2, (key, value) -> 5));
+        assertSame(map, map.compute(2, (key, value) -> null));
+        assertEquals(Integer.valueOf(2), map.merge(1, 1, Integer::sum).get(1));
+        assertEquals(Integer.valueOf(7), map.merge(7, 7, Integer::sum).get(7));
+        assertEquals(Integer.valueOf(11), map.computeIfPresent(new Object1(),
+            (key, value) -> value + 1).get(new Object1()));
+        PersistentTreeMap<Object, Integer> removed = map.compute(new Object2(),
+            (key, value) -> null);
+        assertEquals("(_, 1, 10, _)", removed.toString());
+        assertEquals(2, removed.size());
+        assertEquals("(_, _, _, _)", removed.computeIfPresent(1, (key, value) -> null)
+            .computeIfPresent(new Object1(), (key, value) -> null).toString());
+
+        Random random = new Random(47);
+        PersistentTreeMap<Object, Integer> counters = new PersistentTreeMap<>(3);
+        Map<Object, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(4) == 0) {
+                counters = counters.computeIfPresent(key, (k, value) -> null);
+                expected.computeIfPresent(key, (k, value) -> null);
+            } else {
+                counters = counters.merge(key, 1, Integer::sum);
+                expected.merge(key, 1, Integer::sum);
+            }
+        }
+        assertEquals(expected, toHashMap(counters));
+        PersistentTreeMap<Object, Integer> pruned = counters;
+        for (Object key : expected.keySet()) {
+            pruned = pruned.compute(key, (k, value) -> null);
+        }
+        assertEquals("(_, _, _, _, _, _, _, _)", pruned.toString());
+    }
 }